@@ -4,11 +4,17 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
+import io.dropwizard.util.Duration;
 import org.coursera.metrics.datadog.DatadogReporter;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+import org.coursera.metrics.datadog.PatternExpansionPolicy;
 import org.coursera.metrics.datadog.transport.AbstractTransportFactory;
+import org.hibernate.validator.constraints.Range;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 
 @JsonTypeName("datadog")
@@ -25,14 +31,78 @@ public class DatadogReporterFactory extends BaseReporterFactory {
   @JsonProperty
   private AbstractTransportFactory transport = null;
 
+  @JsonProperty
+  private boolean selfMetrics = false;
+
+  @NotNull
+  @JsonProperty
+  private String selfMetricsNamespace = "datadog.reporter";
+
+  @JsonProperty
+  @Range(min = 1)
+  private int parallelism = 1;
+
+  @JsonProperty
+  @Range(min = 0)
+  private int changeSuppression = 0;
+
+  @JsonProperty
+  private Duration gaugeTimeout = null;
+
+  @NotNull
+  @JsonProperty
+  private DatadogReporter.GaugeTimeoutPolicy gaugeTimeoutPolicy =
+      DatadogReporter.GaugeTimeoutPolicy.LAST_VALUE;
+
+  @JsonProperty
+  @Range(min = 1)
+  private int gaugeThreads = 2;
+
+  @NotNull
+  @JsonProperty
+  private EnumSet<Expansion> expansions = Expansion.ALL;
+
+  @Valid
+  @NotNull
+  @JsonProperty
+  private List<ExpansionRule> expansionRules = new ArrayList<ExpansionRule>();
+
   public ScheduledReporter build(MetricRegistry registry) {
-    return DatadogReporter.forRegistry(registry)
+    DatadogReporter.Builder builder = DatadogReporter.forRegistry(registry);
+    if (gaugeTimeout != null) {
+      builder.withGaugeTimeout(gaugeTimeout.getQuantity(), gaugeTimeout.getUnit());
+    }
+    PatternExpansionPolicy.Builder expansionPolicy = new PatternExpansionPolicy.Builder(expansions);
+    for (ExpansionRule rule : expansionRules) {
+      expansionPolicy.withRule(rule.pattern, rule.expansions);
+    }
+    return builder
+        .withGaugeTimeoutPolicy(gaugeTimeoutPolicy)
+        .withGaugeThreads(gaugeThreads)
         .withTransport(transport.build())
         .withHost(host)
         .withTags(tags)
         .filter(getFilter())
         .convertDurationsTo(getDurationUnit())
         .convertRatesTo(getRateUnit())
+        .withSelfMetrics(selfMetrics ? registry : null)
+        .withSelfMetricsNamespace(selfMetricsNamespace)
+        .withParallelism(parallelism)
+        .withChangeSuppression(changeSuppression)
+        .withExpansionPolicy(expansionPolicy.build())
         .build();
     }
+
+  /**
+   * The expansions sent for the metrics whose name contains a match of a regular expression.
+   */
+  public static class ExpansionRule {
+    @NotNull
+    @JsonProperty
+    private String pattern = null;
+
+    @NotNull
+    @JsonProperty
+    private EnumSet<Expansion> expansions = null;
+  }
 }
\ No newline at end of file
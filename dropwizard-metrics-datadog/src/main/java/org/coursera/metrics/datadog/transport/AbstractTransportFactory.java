@@ -6,7 +6,8 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "type")
 @JsonSubTypes({
         @JsonSubTypes.Type(HttpTransportFactory.class),
-        @JsonSubTypes.Type(UdpTransportFactory.class)
+        @JsonSubTypes.Type(UdpTransportFactory.class),
+        @JsonSubTypes.Type(UdsTransportFactory.class)
 })
 public interface AbstractTransportFactory {
   public Transport build();
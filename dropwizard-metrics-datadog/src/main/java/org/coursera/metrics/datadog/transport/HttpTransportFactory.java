@@ -3,8 +3,11 @@ package org.coursera.metrics.datadog.transport;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+import org.hibernate.validator.constraints.Range;
 
 import javax.validation.constraints.NotNull;
+import java.io.File;
 
 @JsonTypeName("http")
 public class HttpTransportFactory implements AbstractTransportFactory {
@@ -19,11 +22,122 @@ public class HttpTransportFactory implements AbstractTransportFactory {
   @JsonProperty
   private Duration socketTimeout = Duration.seconds(5);
 
+  @NotNull
+  @JsonProperty
+  private HttpTransport.Compression compression = HttpTransport.Compression.NONE;
+
+  @JsonProperty
+  @Range(min = -1, max = 9)
+  private int compressionLevel = -1;
+
+  @JsonProperty
+  @Range(min = 0)
+  private int maxSeriesPerBatch = 0;
+
+  @NotNull
+  @JsonProperty
+  private Size maxBatchSize = Size.bytes(0);
+
+  @JsonProperty
+  @Range(min = 1)
+  private int batchConcurrency = 4;
+
+  @JsonProperty
+  @Range(min = 0)
+  private int maxConnections = 0;
+
+  @NotNull
+  @JsonProperty
+  private Duration keepAlive = Duration.seconds(30);
+
+  @NotNull
+  @JsonProperty
+  private Duration connectionTimeToLive = Duration.minutes(5);
+
+  @JsonProperty
+  @Range(min = 0)
+  private int sendQueueSize = 0;
+
+  @NotNull
+  @JsonProperty
+  private HttpTransport.OverflowPolicy overflowPolicy = HttpTransport.OverflowPolicy.DROP_OLDEST;
+
+  @JsonProperty
+  private String spoolDirectory = null;
+
+  @NotNull
+  @JsonProperty
+  private Size spoolMaxSize = Size.megabytes(256);
+
+  @NotNull
+  @JsonProperty
+  private Size spoolSegmentSize = Size.megabytes(8);
+
+  @NotNull
+  @JsonProperty
+  private Duration spoolReplayInterval = Duration.seconds(1);
+
+  @JsonProperty
+  @Range(min = 0)
+  private int maxRetries = 0;
+
+  @NotNull
+  @JsonProperty
+  private Duration initialBackoff = Duration.milliseconds(100);
+
+  @NotNull
+  @JsonProperty
+  private Duration maxBackoff = Duration.seconds(2);
+
+  @NotNull
+  @JsonProperty
+  private Duration retryBudget = Duration.seconds(5);
+
+  @JsonProperty
+  @Range(min = 0)
+  private int circuitFailureThreshold = 0;
+
+  @NotNull
+  @JsonProperty
+  private Duration circuitOpenDuration = Duration.seconds(30);
+
+  @NotNull
+  @JsonProperty
+  private HttpTransport.CounterType counterType = HttpTransport.CounterType.COUNTER;
+
+  @JsonProperty
+  @Range(min = 1)
+  private int counterExpiry = 10;
+
+  @JsonProperty
+  @Range(min = 1)
+  private int maxTrackedCounters = 100000;
+
   public HttpTransport build() {
     return new HttpTransport.Builder()
         .withApiKey(apiKey)
         .withConnectTimeout((int) connectTimeout.toMilliseconds())
         .withSocketTimeout((int) socketTimeout.toMilliseconds())
+        .withCompression(compression, compressionLevel)
+        .withMaxSeriesPerBatch(maxSeriesPerBatch)
+        .withMaxBytesPerBatch((int) maxBatchSize.toBytes())
+        .withBatchConcurrency(batchConcurrency)
+        .withMaxConnections(maxConnections)
+        .withKeepAlive(keepAlive.toMilliseconds())
+        .withConnectionTimeToLive(connectionTimeToLive.toMilliseconds())
+        .withAsyncSend(sendQueueSize)
+        .withOverflowPolicy(overflowPolicy)
+        .withSpool(spoolDirectory == null ? null : new File(spoolDirectory))
+        .withSpoolMaxBytes(spoolMaxSize.toBytes())
+        .withSpoolSegmentBytes((int) spoolSegmentSize.toBytes())
+        .withSpoolReplayInterval(spoolReplayInterval.toMilliseconds())
+        .withMaxRetries(maxRetries)
+        .withRetryBackoff(initialBackoff.toMilliseconds(), maxBackoff.toMilliseconds())
+        .withRetryBudget(retryBudget.toMilliseconds())
+        .withCircuitBreaker(circuitFailureThreshold, circuitOpenDuration.toMilliseconds())
+        .withCounterType(counterType)
+        .withCounterExpiry(counterExpiry)
+        .withMaxTrackedCounters(maxTrackedCounters)
         .build();
   }
 }
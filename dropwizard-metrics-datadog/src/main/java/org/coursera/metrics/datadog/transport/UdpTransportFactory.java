@@ -20,11 +20,39 @@ public class UdpTransportFactory implements AbstractTransportFactory {
   @JsonProperty
   private String prefix = null;
 
+  @JsonProperty
+  @Range(min = 0, max = 65507)
+  private int maxPacketSize = 0;
+
+  @JsonProperty
+  @Range(min = 1)
+  private int counterExpiry = 10;
+
+  @JsonProperty
+  @Range(min = 1)
+  private int maxTrackedCounters = 100000;
+
+  @JsonProperty
+  private UdpTransport.DistributionType distributions = null;
+
+  @JsonProperty
+  @Range(min = 0)
+  private int maxDistributionSamples = 0;
+
+  @JsonProperty
+  private boolean multiValueLines = false;
+
   public UdpTransport build() {
     return new UdpTransport.Builder()
         .withPrefix(prefix)
         .withStatsdHost(statsdHost)
         .withPort(port)
+        .withMaxPacketSize(maxPacketSize)
+        .withCounterExpiry(counterExpiry)
+        .withMaxTrackedCounters(maxTrackedCounters)
+        .withDistributions(distributions)
+        .withMaxDistributionSamples(maxDistributionSamples)
+        .withMultiValueLines(multiValueLines)
         .build();
     }
 }
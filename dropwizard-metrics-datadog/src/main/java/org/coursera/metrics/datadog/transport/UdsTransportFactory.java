@@ -0,0 +1,41 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import org.hibernate.validator.constraints.Range;
+
+import javax.validation.constraints.NotNull;
+
+@JsonTypeName("uds")
+public class UdsTransportFactory implements AbstractTransportFactory {
+
+  /** Path of the agent's {@code dogstatsd_stream_socket}; its datagram socket will not do. */
+  @NotNull
+  @JsonProperty
+  private String socketPath = null;
+
+  @JsonProperty
+  private String prefix = null;
+
+  @JsonProperty
+  @Range(min = 1)
+  private int maxPacketSize = 8192;
+
+  @JsonProperty
+  @Range(min = 1)
+  private int counterExpiry = 10;
+
+  @JsonProperty
+  @Range(min = 1)
+  private int maxTrackedCounters = 100000;
+
+  public UdsTransport build() {
+    return new UdsTransport.Builder()
+        .withSocketPath(socketPath)
+        .withPrefix(prefix)
+        .withMaxPacketSize(maxPacketSize)
+        .withCounterExpiry(counterExpiry)
+        .withMaxTrackedCounters(maxTrackedCounters)
+        .build();
+  }
+}
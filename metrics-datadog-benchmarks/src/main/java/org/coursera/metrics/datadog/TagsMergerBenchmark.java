@@ -0,0 +1,49 @@
+package org.coursera.metrics.datadog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging of the reporter's static tags with dynamic tags, once per metric per report when a
+ * {@link DynamicTagsCallback} is set. {@code merge} is the merge itself, {@code mergeCached} what
+ * the reporter pays when the callback returns the same tags as in a previous report. In the
+ * reporter's package as {@link TagsMerger} and {@link MergedTagsCache} are package private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagsMergerBenchmark {
+  private final List<String> staticTags = Arrays.asList("env:prod", "version:1.0.1", "region:us-east-1");
+  private final List<String> dynamicTags = Arrays.asList("status:active", "env:canary");
+  private final MergedTagsCache cache =
+      new MergedTagsCache(staticTags, MergedTagsCache.DEFAULT_MAX_ENTRIES);
+
+  @Benchmark
+  public List<String> merge() {
+    return TagsMerger.mergeTags(staticTags, dynamicTags);
+  }
+
+  @Benchmark
+  public List<String> mergeIntoEmpty() {
+    return TagsMerger.mergeTags(null, dynamicTags);
+  }
+
+  @Benchmark
+  public List<String> mergeCached() {
+    return cache.get(dynamicTags);
+  }
+}
@@ -0,0 +1,59 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.coursera.metrics.datadog.transport.CounterDeltaTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The counter delta computation of the dogstatsd transports for one report of {@code counters}
+ * counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterDeltaBenchmark {
+
+  @Param({ "1000", "100000" })
+  public int counters;
+
+  private SeriesName[] names;
+  private CounterDeltaTable table;
+  private long count;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    names = new SeriesName[counters];
+    for (int i = 0; i < counters; i++) {
+      names[i] = SeriesName.parse("service.counter" + i + "[shard:" + (i % 16) + "]")
+          .withTags(Arrays.asList("env:bench"));
+    }
+    table = new CounterDeltaTable(10, counters);
+  }
+
+  @Benchmark
+  public void flush(Blackhole blackhole) {
+    count += 3;
+    table.startFlush();
+    for (SeriesName name : names) {
+      blackhole.consume(table.delta(name, count));
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import org.coursera.metrics.datadog.IntervalCounter;
+import org.coursera.metrics.datadog.IntervalMeter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates of one counter and one meter shared by 4 threads, with the metrics classes or with
+ * {@link IntervalCounter} and {@link IntervalMeter}. Run with {@code -t} for other thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class IntervalCounterBenchmark {
+
+  @Param({ "metrics", "interval" })
+  public String implementation;
+
+  private Counter counter;
+  private Meter meter;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    boolean interval = "interval".equals(implementation);
+    counter = interval ? new IntervalCounter() : new Counter();
+    meter = interval ? new IntervalMeter() : new Meter();
+  }
+
+  @Benchmark
+  public void inc() {
+    counter.inc();
+  }
+
+  @Benchmark
+  public void mark() {
+    meter.mark();
+  }
+}
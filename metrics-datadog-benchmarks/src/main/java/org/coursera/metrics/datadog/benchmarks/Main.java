@@ -0,0 +1,28 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like {@link org.openjdk.jmh.Main}, taking the same arguments, but always
+ * with the GC profiler so that allocation rates ({@code gc.alloc.rate.norm} is bytes per
+ * operation) are recorded next to the timings.
+ */
+public class Main {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    Options options = new OptionsBuilder()
+        .parent(commandLine)
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(options).run();
+  }
+}
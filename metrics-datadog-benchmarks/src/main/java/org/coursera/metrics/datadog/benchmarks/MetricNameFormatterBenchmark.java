@@ -0,0 +1,38 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import org.coursera.metrics.datadog.DefaultMetricNameFormatter;
+import org.coursera.metrics.datadog.MetricNameFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting of an expansion name, e.g. {@code requests.p99[status:200]}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricNameFormatterBenchmark {
+
+  @Param({ "http.server.requests", "http.server.requests[endpoint:/users,status:200]" })
+  public String name;
+
+  private final MetricNameFormatter formatter = new DefaultMetricNameFormatter();
+
+  @Benchmark
+  public String format() {
+    return formatter.format(name, "p99");
+  }
+}
@@ -0,0 +1,35 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.transport.Transport;
+
+/**
+ * A transport that drops everything, to measure the reporter on its own. It keeps the number of
+ * series it was given so the work can't be optimized away.
+ */
+public class NoopTransport implements Transport {
+  private long series;
+
+  public Request prepare() {
+    return new Request() {
+      public void addGauge(DatadogGauge gauge) {
+        series++;
+      }
+
+      public void addCounter(DatadogCounter counter) {
+        series++;
+      }
+
+      public void send() {
+      }
+    };
+  }
+
+  public long getSeries() {
+    return series;
+  }
+
+  public void close() {
+  }
+}
@@ -0,0 +1,62 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import org.coursera.metrics.datadog.DatadogReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a {@link DatadogReporter#report()} of a {@link Registries#mixed(int) mixed} registry
+ * scales with the number of threads reading the metrics and building their series. Sent to a
+ * transport that drops them, so that only the reporter is measured. Compare against the
+ * number of cores of the machine, e.g. with {@code -p threads=1,2,4,8,16}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelReportBenchmark {
+
+  @Param({ "10000", "100000" })
+  public int metrics;
+
+  @Param({ "1", "2", "4", "8" })
+  public int threads;
+
+  private DatadogReporter reporter;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    reporter = DatadogReporter.forRegistry(Registries.mixed(metrics))
+        .withHost("benchmark-host")
+        .withTags(Arrays.asList("env:bench", "version:1.0"))
+        .withTransport(new NoopTransport())
+        .withParallelism(threads)
+        .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    reporter.stop();
+  }
+
+  @Benchmark
+  public void report() {
+    reporter.report();
+  }
+}
@@ -0,0 +1,78 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import org.coursera.metrics.datadog.QuantileSketch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link QuantileSketch} against a histogram over an {@link ExponentiallyDecayingReservoir},
+ * the reservoir of timers. {@code update} is the cost of recording one latency-like value.
+ * {@code fill} records {@code values} values into a new histogram, so its
+ * {@code gc.alloc.rate.norm} is the footprint of a histogram holding them, plus the garbage
+ * made along the way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuantileSketchBenchmark {
+
+  @Param({ "sketch", "reservoir" })
+  public String histogram;
+
+  @Param({ "10000" })
+  public int values;
+
+  private long[] samples;
+  private Histogram updated;
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    // log-normal, around a millisecond in nanoseconds
+    Random random = new Random(42);
+    samples = new long[1 << 16];
+    for (int i = 0; i < samples.length; i++) {
+      samples[i] = (long) (1000000 * Math.exp(random.nextGaussian()));
+    }
+    updated = create();
+  }
+
+  @Benchmark
+  public void update() {
+    updated.update(samples[next++ & (samples.length - 1)]);
+  }
+
+  @Benchmark
+  public Histogram fill() {
+    Histogram filled = create();
+    for (int i = 0; i < values; i++) {
+      filled.update(samples[i & (samples.length - 1)]);
+    }
+    return filled;
+  }
+
+  private Histogram create() {
+    if ("sketch".equals(histogram)) {
+      return new QuantileSketch();
+    }
+    return new Histogram(new ExponentiallyDecayingReservoir());
+  }
+}
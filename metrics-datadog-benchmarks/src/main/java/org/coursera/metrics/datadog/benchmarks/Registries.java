@@ -0,0 +1,63 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registries shared by the reporter benchmarks.
+ */
+final class Registries {
+
+  private Registries() {
+  }
+
+  /**
+   * A registry holding an even mix of gauges, counters, histograms, meters and timers, a fifth
+   * of them with embedded tags.
+   */
+  static MetricRegistry mixed(int metrics) {
+    MetricRegistry registry = new MetricRegistry();
+    Random random = new Random(42);
+    for (int i = 0; i < metrics; i++) {
+      String name = "service.component" + (i % 100) + ".metric" + i;
+      if (i % 5 == 4) {
+        name += "[shard:" + (i % 16) + ",region:us-east-1]";
+      }
+      switch (i % 5) {
+        case 0:
+          final double value = random.nextDouble();
+          registry.register(name, new Gauge<Double>() {
+            public Double getValue() {
+              return value;
+            }
+          });
+          break;
+        case 1:
+          registry.counter(name).inc(random.nextInt(1000));
+          break;
+        case 2:
+          Histogram histogram = registry.histogram(name);
+          for (int j = 0; j < 100; j++) {
+            histogram.update(random.nextInt(1000));
+          }
+          break;
+        case 3:
+          Meter meter = registry.meter(name);
+          meter.mark(random.nextInt(1000));
+          break;
+        default:
+          Timer timer = registry.timer(name);
+          for (int j = 0; j < 100; j++) {
+            timer.update(random.nextInt(1000), TimeUnit.MICROSECONDS);
+          }
+      }
+    }
+    return registry;
+  }
+}
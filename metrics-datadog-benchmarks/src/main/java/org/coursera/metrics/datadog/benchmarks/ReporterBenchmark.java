@@ -0,0 +1,84 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import org.coursera.metrics.datadog.DatadogReporter;
+import org.coursera.metrics.datadog.transport.LoopbackTransports;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.DatagramSocket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full {@link DatadogReporter#report()} of a {@link Registries#mixed(int) mixed} registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReporterBenchmark {
+
+  @Param({ "1000", "10000", "100000" })
+  public int metrics;
+
+  @Param({ "noop", "udp", "http" })
+  public String transport;
+
+  private DatadogReporter reporter;
+  private Transport target;
+  private HttpServer httpServer;
+  private DatagramSocket udpSocket;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    MetricRegistry registry = Registries.mixed(metrics);
+
+    if ("udp".equals(transport)) {
+      udpSocket = LoopbackTransports.bindUdpSocket();
+      target = LoopbackTransports.udp(udpSocket).build();
+    } else if ("http".equals(transport)) {
+      httpServer = LoopbackTransports.startHttpServer();
+      target = LoopbackTransports.http(httpServer).build();
+    } else {
+      target = new NoopTransport();
+    }
+    reporter = DatadogReporter.forRegistry(registry)
+        .withHost("benchmark-host")
+        .withTags(Arrays.asList("env:bench", "version:1.0"))
+        .withTransport(target)
+        .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    reporter.stop();
+    target.close();
+    if (httpServer != null) {
+      httpServer.stop(0);
+    }
+    if (udpSocket != null) {
+      udpSocket.close();
+    }
+  }
+
+  @Benchmark
+  public void report() {
+    reporter.report();
+  }
+}
@@ -0,0 +1,113 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.serializer.DirectJsonSerializer;
+import org.coursera.metrics.serializer.JsonSerializer;
+import org.coursera.metrics.serializer.Serializer;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a report of {@code series} gauges and counters, streamed to a sink that
+ * only counts bytes or buffered and read back as a string.
+ * <p/>
+ * The {@code bytes} counter is the payload size per second, divide it by the score for
+ * bytes per report.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+
+  @Param({ "1000", "10000" })
+  public int series;
+
+  @Param({ "jackson", "direct" })
+  public String serializer;
+
+  private final List<DatadogGauge> gauges = new ArrayList<DatadogGauge>();
+  private final List<DatadogCounter> counters = new ArrayList<DatadogCounter>();
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Payload {
+    public long bytes;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    List<String> tags = Arrays.asList("env:bench", "version:1.0", "region:us-east-1");
+    for (int i = 0; i < series / 2; i++) {
+      gauges.add(new DatadogGauge("service.gauge" + i, i * 1.5, 1420070400L, "host", tags));
+      counters.add(new DatadogCounter("service.counter" + i, (long) i, 1420070400L, "host", tags));
+    }
+  }
+
+  @Benchmark
+  public void stream(Payload payload) throws IOException {
+    CountingSink sink = new CountingSink();
+    write(create(sink));
+    payload.bytes += sink.count;
+  }
+
+  @Benchmark
+  public String buffered(Payload payload) throws IOException {
+    Serializer out = create(null);
+    write(out);
+    String json = out.getAsString();
+    payload.bytes += json.length();
+    return json;
+  }
+
+  private Serializer create(OutputStream sink) {
+    if ("direct".equals(serializer)) {
+      return sink == null ? new DirectJsonSerializer() : new DirectJsonSerializer(sink);
+    }
+    return sink == null ? new JsonSerializer() : new JsonSerializer(sink);
+  }
+
+  private void write(Serializer out) throws IOException {
+    out.startObject();
+    for (int i = 0; i < gauges.size(); i++) {
+      out.appendGauge(gauges.get(i));
+      out.appendCounter(counters.get(i));
+    }
+    out.endObject();
+  }
+
+  private static class CountingSink extends OutputStream {
+    long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
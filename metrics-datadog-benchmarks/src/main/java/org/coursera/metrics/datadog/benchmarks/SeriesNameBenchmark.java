@@ -0,0 +1,75 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsing of names with embedded tags, {@code name[tag1:v1,tag2:v2]}. {@code regexPerSeries}
+ * is what every DatadogSeries constructor used to do: compile the tag pattern, match and split.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeriesNameBenchmark {
+  private static final Pattern TAG_PATTERN = Pattern.compile("([\\w\\.]+)\\[([\\w\\W]+)\\]");
+
+  @Param({ "jvm.memory.heap.used", "http.requests.p99[endpoint:/users,method:get,status:200]" })
+  public String name;
+
+  private final List<String> tags = Arrays.asList("env:prod", "version:1.0.1");
+
+  @Benchmark
+  public List<String> regexPerSeries() {
+    Pattern pattern = Pattern.compile("([\\w\\.]+)\\[([\\w\\W]+)\\]");
+    return regex(pattern);
+  }
+
+  @Benchmark
+  public List<String> regexCompiledOnce() {
+    return regex(TAG_PATTERN);
+  }
+
+  @Benchmark
+  public SeriesName parse() {
+    return SeriesName.parse(name);
+  }
+
+  @Benchmark
+  public DatadogGauge newGauge() {
+    return new DatadogGauge(name, 1.0, 1234L, "host", tags);
+  }
+
+  private List<String> regex(Pattern pattern) {
+    Matcher matcher = pattern.matcher(name);
+    List<String> parsed = new ArrayList<String>();
+    if (matcher.find() && matcher.groupCount() == 2) {
+      parsed.add(matcher.group(1));
+      for (String t : matcher.group(2).split("\\,")) {
+        parsed.add(t);
+      }
+    } else {
+      parsed.add(name);
+    }
+    return parsed;
+  }
+}
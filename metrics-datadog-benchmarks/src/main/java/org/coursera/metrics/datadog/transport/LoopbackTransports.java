@@ -0,0 +1,60 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Transports that talk to a local endpoint, so that benchmarks include the cost of the network
+ * stack without leaving the machine. Lives in the transport package for access to the base url
+ * of {@link HttpTransport}.
+ */
+public class LoopbackTransports {
+
+  /**
+   * An http server on a free local port that reads and discards every request body.
+   */
+  public static HttpServer startHttpServer() throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/api/v1/series", new HttpHandler() {
+      private final byte[] discard = new byte[8192];
+
+      public void handle(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        while (in.read(discard) >= 0) {
+        }
+        exchange.sendResponseHeaders(202, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  public static HttpTransport.Builder http(HttpServer server) {
+    return new HttpTransport.Builder()
+        .withApiKey("benchmark")
+        .withBaseUrl("http://localhost:" + server.getAddress().getPort() + "/api/v1");
+  }
+
+  /**
+   * A bound socket for a udp transport to send to. Nothing reads it, the kernel drops what
+   * doesn't fit its buffer.
+   */
+  public static DatagramSocket bindUdpSocket() throws IOException {
+    return new DatagramSocket(0, InetAddress.getLoopbackAddress());
+  }
+
+  public static UdpTransport.Builder udp(DatagramSocket socket) {
+    return new UdpTransport.Builder()
+        .withStatsdHost("localhost")
+        .withPort(socket.getLocalPort())
+        .withMaxPacketSize(1432);
+  }
+}
@@ -2,31 +2,80 @@ package org.coursera.metrics.datadog;
 
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
+import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Sampling;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.coursera.metrics.datadog.transport.HttpTransport;
 import org.coursera.metrics.datadog.transport.Transport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class DatadogReporter extends ScheduledReporter
+/**
+ * Reports the metrics of a registry to Datadog through a {@link Transport}.
+ * <p/>
+ * The series names of each metric, with their expansions and tags, are resolved once and cached
+ * until the metric is removed from the registry. Which expansions of a timer, histogram or meter
+ * are sent can be picked per metric with an {@link ExpansionPolicy}.
+ * <p/>
+ * The reporter instruments itself: the duration of each report, split into reading the metrics
+ * (snapshot), building the series (encode) and sending them, the number of series per report,
+ * failed reports and the size of the name cache. Together with the metrics of the transport,
+ * if it is a {@link MetricSet}, they are available from {@link #getMetrics()} and can be
+ * registered under a namespace with {@link Builder#withSelfMetrics(MetricRegistry)}.
+ * <p/>
+ * Optionally, series whose value did not change since they were last sent are skipped, see
+ * {@link Builder#withChangeSuppression(int)}, and gauges are read with a time budget, see
+ * {@link Builder#withGaugeTimeout(long, TimeUnit)}.
+ * <p/>
+ * If the transport's requests are {@link Transport.DistributionRequest}s, timers and histograms
+ * are sent as the values of their snapshot, for the agent to compute the statistics, instead of
+ * the statistic expansions. A reservoir keeps values from before the last report, so the values
+ * only stand for the updates since then: nothing is sent without new updates, a snapshot larger
+ * than the updates is thinned to their number, and a smaller one is sent with the sample rate that
+ * scales it up to them.
+ * <p/>
+ * {@link IntervalCounter}s and {@link IntervalMeter}s are reported with their count since the
+ * previous report, as a datadog count.
+ * <p/>
+ * {@link QuantileSketch}es are reported like other histograms, with their count and
+ * statistics computed from the values recorded since the previous report, or as the weighted
+ * bins of the sketch to a {@link Transport.DistributionRequest}.
+ */
+public class DatadogReporter extends ScheduledReporter implements MetricSet
 {
 
 	private static final Logger LOG = LoggerFactory.getLogger(DatadogReporter.class);
@@ -34,32 +83,205 @@ public class DatadogReporter extends ScheduledReporter
 	private static final Expansion[] STATS_EXPANSIONS =
 	{ Expansion.MAX, Expansion.MEAN, Expansion.MIN, Expansion.STD_DEV, Expansion.MEDIAN, Expansion.P75, Expansion.P95,
 			Expansion.P98, Expansion.P99, Expansion.P999 };
+	private static final EnumSet<Expansion> STATS = EnumSet.copyOf(Arrays.asList(STATS_EXPANSIONS));
 	private static final Expansion[] RATE_EXPANSIONS =
 	{ Expansion.RATE_1_MINUTE, Expansion.RATE_5_MINUTE, Expansion.RATE_15_MINUTE, Expansion.RATE_MEAN };
+	// the fewest metrics worth handing to another thread in a parallel report
+	private static final int MIN_METRICS_PER_PART = 64;
+	// parts per thread, so that threads done with cheap metrics take over from the others
+	private static final int PARTS_PER_THREAD = 4;
 
+	private final MetricRegistry registry;
 	private final Transport transport;
 	private final Clock clock;
 	private final String host;
-	private final EnumSet<Expansion> expansions;
-	private final MetricNameFormatter metricNameFormatter;
 	private final List<String> tags;
-	private final String prefix;
 	private final DynamicTagsCallback tagsCallback;
-	private Transport.Request request;
+	private final MergedTagsCache mergedTags;
+	private final SeriesNameCache names;
+	private final Timer reportTime = new Timer();
+	private final Timer snapshotTime = new Timer();
+	private final Timer encodeTime = new Timer();
+	private final Timer sendTime = new Timer();
+	private final Histogram seriesPerReport = new Histogram(new ExponentiallyDecayingReservoir());
+	private final Counter reportErrors = new Counter();
+	private final UnchangedSeriesFilter unchanged;
+	private final Counter seriesSuppressed = new Counter();
+	private final MetricRegistry selfMetricsRegistry;
+	private final List<String> selfMetricNames = new ArrayList<String>();
+	private final int parallelism;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private final GaugeEvaluator gaugeEvaluator;
+	private final Map<String, Long> distributionCounts = new ConcurrentHashMap<String, Long>();
+	private long collectStart;
 
 	private DatadogReporter(MetricRegistry metricRegistry, Transport transport, MetricFilter filter, Clock clock,
-			String host, EnumSet<Expansion> expansions, TimeUnit rateUnit, TimeUnit durationUnit,
-			MetricNameFormatter metricNameFormatter, List<String> tags, String prefix, DynamicTagsCallback tagsCallback)
+			String host, ExpansionPolicy expansionPolicy, TimeUnit rateUnit, TimeUnit durationUnit,
+			MetricNameFormatter metricNameFormatter, List<String> tags, String prefix, DynamicTagsCallback tagsCallback,
+			MetricRegistry selfMetricsRegistry, String selfMetricsNamespace, int heartbeat, int parallelism,
+			ExecutorService executor, long gaugeTimeout, int gaugeThreads, GaugeTimeoutPolicy gaugeTimeoutPolicy)
 	{
 		super(metricRegistry, "datadog-reporter", filter, rateUnit, durationUnit);
+		this.registry = metricRegistry;
 		this.clock = clock;
 		this.host = host;
-		this.expansions = expansions;
-		this.metricNameFormatter = metricNameFormatter;
 		this.tags = (tags == null) ? new ArrayList<String>() : tags;
 		this.transport = transport;
-		this.prefix = prefix;
 		this.tagsCallback = tagsCallback;
+		this.mergedTags = (tagsCallback != null && !this.tags.isEmpty())
+				? new MergedTagsCache(this.tags, MergedTagsCache.DEFAULT_MAX_ENTRIES) : null;
+		this.names = new SeriesNameCache(prefix, metricNameFormatter, expansionPolicy);
+		metricRegistry.addListener(names);
+		this.unchanged = (heartbeat > 0) ? new UnchangedSeriesFilter(clampHeartbeat(heartbeat, transport)) : null;
+		if (gaugeTimeout > 0)
+		{
+			this.gaugeEvaluator = new GaugeEvaluator(gaugeTimeout, TimeUnit.MILLISECONDS, gaugeThreads,
+					gaugeTimeoutPolicy);
+			metricRegistry.addListener(gaugeEvaluator);
+		}
+		else
+		{
+			this.gaugeEvaluator = null;
+		}
+		this.parallelism = parallelism;
+		this.ownsExecutor = (parallelism > 1 && executor == null);
+		if (parallelism <= 1)
+		{
+			this.executor = null;
+		}
+		else if (!ownsExecutor)
+		{
+			this.executor = executor;
+		}
+		else
+		{
+			this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory()
+			{
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, "datadog-reporter-worker-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		this.selfMetricsRegistry = selfMetricsRegistry;
+		if (selfMetricsRegistry != null)
+		{
+			for (Map.Entry<String, Metric> entry : getMetrics().entrySet())
+			{
+				String name = MetricRegistry.name(selfMetricsNamespace, entry.getKey());
+				selfMetricsRegistry.register(name, entry.getValue());
+				selfMetricNames.add(name);
+			}
+		}
+	}
+
+	/**
+	 * The heartbeat of change suppression, lowered to the counter expiry of a transport that keeps the last count
+	 * of each counter, so that a counter is never suppressed long enough for its last count to be forgotten and
+	 * its next count to be sent in full as an increment.
+	 */
+	private static int clampHeartbeat(int heartbeat, Transport transport)
+	{
+		if (transport instanceof Transport.CounterTracking)
+		{
+			final int expiry = ((Transport.CounterTracking) transport).getCounterExpiry();
+			if (expiry > 0 && heartbeat > expiry)
+			{
+				LOG.info("Lowering the change suppression heartbeat from " + heartbeat
+						+ " to the counter expiry of the transport, " + expiry);
+				return expiry;
+			}
+		}
+		return heartbeat;
+	}
+
+	/**
+	 * Start reporting at the given period, which must be longer than the retry budget of an
+	 * {@link HttpTransport} that retries, which bounds the send of a whole report, so that retries
+	 * never delay the next report.
+	 */
+	@Override
+	public void start(long period, TimeUnit unit)
+	{
+		if (transport instanceof HttpTransport)
+		{
+			final long budget = ((HttpTransport) transport).getRetryBudget();
+			if (budget >= unit.toMillis(period))
+			{
+				throw new IllegalArgumentException("The retry budget of the transport, " + budget
+						+ " ms, must be below the reporting period of " + unit.toMillis(period) + " ms");
+			}
+		}
+		super.start(period, unit);
+	}
+
+	@Override
+	public void stop()
+	{
+		super.stop();
+		registry.removeListener(names);
+		if (ownsExecutor)
+		{
+			executor.shutdown();
+		}
+		if (gaugeEvaluator != null)
+		{
+			registry.removeListener(gaugeEvaluator);
+			gaugeEvaluator.stop();
+		}
+		if (selfMetricsRegistry != null)
+		{
+			for (String name : selfMetricNames)
+			{
+				selfMetricsRegistry.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * The reporter's own metrics, with those of the transport under {@code transport.}.
+	 */
+	public Map<String, Metric> getMetrics()
+	{
+		Map<String, Metric> metrics = new HashMap<String, Metric>();
+		metrics.put("report.duration", reportTime);
+		metrics.put("report.snapshot", snapshotTime);
+		metrics.put("report.encode", encodeTime);
+		metrics.put("report.send", sendTime);
+		metrics.put("report.series", seriesPerReport);
+		metrics.put("report.errors", reportErrors);
+		metrics.put("series.suppressed", seriesSuppressed);
+		metrics.put("names.cached", new Gauge<Integer>()
+		{
+			public Integer getValue()
+			{
+				return names.size();
+			}
+		});
+		if (gaugeEvaluator != null)
+		{
+			metrics.putAll(gaugeEvaluator.getMetrics());
+		}
+		if (transport instanceof MetricSet)
+		{
+			for (Map.Entry<String, Metric> entry : ((MetricSet) transport).getMetrics().entrySet())
+			{
+				metrics.put("transport." + entry.getKey(), entry.getValue());
+			}
+		}
+		return Collections.unmodifiableMap(metrics);
+	}
+
+	@Override
+	public void report()
+	{
+		collectStart = System.nanoTime();
+		super.report();
 	}
 
 	@Override
@@ -67,41 +289,192 @@ public class DatadogReporter extends ScheduledReporter
 			SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters, SortedMap<String, Timer> timers)
 	{
 		final long timestamp = clock.getTime() / 1000;
+		final long collected = System.nanoTime();
+		// time spent by report() collecting the metrics from the registry counts as snapshot
+		final long start = (collectStart == 0) ? collected : collectStart;
+		collectStart = 0;
 
+		Transport.Request request = null;
 		try
 		{
 			request = transport.prepare();
-
-			for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+			final boolean distributions = request instanceof Transport.DistributionRequest;
+			final Metrics metrics = new Metrics(gauges, counters, histograms, meters, timers);
+			final int parts = (executor == null) ? 1
+					: Math.min(parallelism * PARTS_PER_THREAD, metrics.size() / MIN_METRICS_PER_PART);
+			final long snapshotNanos;
+			int series = 0;
+			if (parts <= 1)
 			{
-				reportGauge(prefix(entry.getKey()), entry.getValue(), timestamp, getTag(entry.getKey()));
+				final Partition partition = new Partition(request, distributions);
+				reportRange(partition, metrics, 0, metrics.size(), timestamp);
+				snapshotNanos = collected - start + partition.snapshotNanos;
+				series = partition.series;
 			}
-
-			for (Map.Entry<String, Counter> entry : counters.entrySet())
+			else
 			{
-				reportCounter(prefix(entry.getKey()), entry.getValue(), timestamp, getTag(entry.getKey()));
+				// the parts are built side by side, then copied to the request in order; reading the
+				// metrics and building the series overlap, so the whole parallel phase counts as snapshot
+				final List<Partition> partitions = reportParallel(metrics, parts, distributions, timestamp);
+				snapshotNanos = System.nanoTime() - start;
+				for (Partition partition : partitions)
+				{
+					((SeriesBuffer) partition.request).copyTo(request);
+					series += partition.series;
+				}
 			}
 
-			for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+			final long encoded = System.nanoTime();
+			snapshotTime.update(snapshotNanos, TimeUnit.NANOSECONDS);
+			encodeTime.update(encoded - start - snapshotNanos, TimeUnit.NANOSECONDS);
+			seriesPerReport.update(series);
+			if (!distributionCounts.isEmpty())
 			{
-				reportHistogram(prefix(entry.getKey()), entry.getValue(), timestamp, getTag(entry.getKey()));
+				forgetRemovedDistributions(histograms, timers);
 			}
+			request.send();
+			if (unchanged != null)
+			{
+				unchanged.commitReport();
+			}
+			final long sent = System.nanoTime();
+			sendTime.update(sent - encoded, TimeUnit.NANOSECONDS);
+			reportTime.update(sent - start, TimeUnit.NANOSECONDS);
+		} catch (Throwable e)
+		{
+			if (request instanceof Transport.AbortableRequest)
+			{
+				((Transport.AbortableRequest) request).abort();
+			}
+			if (unchanged != null)
+			{
+				unchanged.abortReport();
+			}
+			reportErrors.inc();
+			LOG.error("Error reporting metrics to Datadog", e);
+		}
+	}
 
-			for (Map.Entry<String, Meter> entry : meters.entrySet())
+	/**
+	 * Build the series of the metrics in {@code parts} contiguous ranges on the executor, each into
+	 * its own buffer, and return the parts in the order of the metrics.
+	 */
+	private List<Partition> reportParallel(final Metrics metrics, int parts, final boolean distributions,
+			final long timestamp) throws Exception
+	{
+		final List<Future<Partition>> futures = new ArrayList<Future<Partition>>(parts);
+		for (int i = 0; i < parts; i++)
+		{
+			final int from = (int) ((long) metrics.size() * i / parts);
+			final int to = (int) ((long) metrics.size() * (i + 1) / parts);
+			futures.add(executor.submit(new Callable<Partition>()
+			{
+				public Partition call() throws Exception
+				{
+					final Partition partition = new Partition(new SeriesBuffer(), distributions);
+					reportRange(partition, metrics, from, to, timestamp);
+					return partition;
+				}
+			}));
+		}
+
+		final List<Partition> partitions = new ArrayList<Partition>(parts);
+		try
+		{
+			for (Future<Partition> future : futures)
 			{
-				reportMetered(prefix(entry.getKey()), entry.getValue(), timestamp, getTag(entry.getKey()));
+				partitions.add(future.get());
 			}
+		} catch (ExecutionException e)
+		{
+			for (Future<Partition> future : futures)
+			{
+				future.cancel(true);
+			}
+			throw e;
+		}
+		return partitions;
+	}
 
-			for (Map.Entry<String, Timer> entry : timers.entrySet())
+	/**
+	 * Report the metrics from index {@code from} inclusive to {@code to} exclusive.
+	 */
+	private void reportRange(Partition partition, Metrics metrics, int from, int to, long timestamp)
+			throws IOException
+	{
+		for (int i = from; i < to; i++)
+		{
+			final String key = metrics.keys[i];
+			final Metric metric = metrics.metrics[i];
+			final List<String> tags = getTag(key);
+			if (i < metrics.counters)
 			{
-				reportTimer(prefix(entry.getKey()), entry.getValue(), timestamp, getTag(entry.getKey()));
+				reportGauge(partition, key, (Gauge) metric, timestamp, tags);
 			}
+			else if (i < metrics.histograms)
+			{
+				reportCounter(partition, key, (Counter) metric, timestamp, tags);
+			}
+			else if (i < metrics.meters)
+			{
+				if (metric instanceof QuantileSketch)
+				{
+					reportSketch(partition, key, (QuantileSketch) metric, timestamp, tags);
+				}
+				else
+				{
+					reportHistogram(partition, key, (Histogram) metric, timestamp, tags);
+				}
+			}
+			else if (i < metrics.timers)
+			{
+				reportMetered(partition, key, (Meter) metric, timestamp, tags);
+			}
+			else
+			{
+				reportTimer(partition, key, (Timer) metric, timestamp, tags);
+			}
+		}
+	}
 
-			request.send();
-		} catch (Throwable e)
+	private void addGauge(Partition partition, SeriesName name, Number value, long timestamp) throws IOException
+	{
+		if (isUnchanged(name, value))
 		{
-			LOG.error("Error reporting metrics to Datadog", e);
+			return;
+		}
+		partition.series++;
+		partition.request.addGauge(new DatadogGauge(name, value, timestamp, host));
+	}
+
+	private void addCounter(Partition partition, SeriesName name, long count, long timestamp) throws IOException
+	{
+		addCounter(partition, name, count, false, timestamp);
+	}
+
+	/**
+	 * Add a counter whose count is either the total, or with {@code delta} the count since the previous report.
+	 */
+	private void addCounter(Partition partition, SeriesName name, long count, boolean delta, long timestamp)
+			throws IOException
+	{
+		// a count since the previous report equal to the last one sent is new counts, only zeroes may be skipped
+		if ((!delta || count == 0) && isUnchanged(name, count))
+		{
+			return;
+		}
+		partition.series++;
+		partition.request.addCounter(new DatadogCounter(name, count, timestamp, host, delta));
+	}
+
+	private boolean isUnchanged(SeriesName name, Number value)
+	{
+		if (unchanged == null || unchanged.accept(name, value))
+		{
+			return false;
 		}
+		seriesSuppressed.inc();
+		return true;
 	}
 
 	private List<String> getTag(String key)
@@ -112,91 +485,346 @@ public class DatadogReporter extends ScheduledReporter
 			List<String> dynamicTags = tagsCallback.getTags(key);
 			if (dynamicTags != null && !dynamicTags.isEmpty())
 			{
-				newTags = TagsMerger.mergeTags(tags, dynamicTags);
+				newTags = (mergedTags != null) ? mergedTags.get(dynamicTags) : dynamicTags;
 			}
 		}
 		return newTags;
 	}
 
-	private void reportTimer(String name, Timer timer, long timestamp, List<String> tags) throws IOException
+	private void reportTimer(Partition partition, String key, Timer timer, long timestamp, List<String> tags) throws IOException
 	{
-		final Snapshot snapshot = timer.getSnapshot();
+		final EnumSet<Expansion> expansions = names.expansions(key);
+		if (partition.distributions != null)
+		{
+			if (!Collections.disjoint(expansions, STATS))
+			{
+				addDistribution(partition, key, timer, timer.getCount(), true, tags);
+			}
+			reportMetered(partition, key, timer, timestamp, tags);
+			return;
+		}
 
-		double[] values =
-		{ snapshot.getMax(), snapshot.getMean(), snapshot.getMin(), snapshot.getStdDev(), snapshot.getMedian(),
-				snapshot.get75thPercentile(), snapshot.get95thPercentile(), snapshot.get98thPercentile(),
-				snapshot.get99thPercentile(), snapshot.get999thPercentile() };
+		final long start = System.nanoTime();
+		computeStats(timer.getSnapshot(), expansions, partition.stats);
+		partition.snapshotNanos += System.nanoTime() - start;
 
 		for (int i = 0; i < STATS_EXPANSIONS.length; i++)
 		{
 			if (expansions.contains(STATS_EXPANSIONS[i]))
 			{
-				request.addGauge(new DatadogGauge(appendExpansionSuffix(name, STATS_EXPANSIONS[i]),
-						toNumber(convertDuration(values[i])), timestamp, host, tags));
+				addGauge(partition, names.get(key, STATS_EXPANSIONS[i], tags),
+						convertDuration(partition.stats[i]), timestamp);
 			}
 		}
 
-		reportMetered(name, timer, timestamp, tags);
+		reportMetered(partition, key, timer, timestamp, tags);
 	}
 
-	private void reportMetered(String name, Metered meter, long timestamp, List<String> tags) throws IOException
+	/**
+	 * Add the values of the snapshot, converted to the duration unit for a timer, as a
+	 * distribution under the name of the metric, standing for the {@code count} updates since the
+	 * previous report. The snapshot is thinned to them if it holds more values, and otherwise sent
+	 * with the sample rate that scales it up to them.
+	 */
+	private void addDistribution(Partition partition, String key, Sampling sampling, long count, boolean durations,
+			List<String> tags) throws IOException
 	{
-		if (expansions.contains(Expansion.COUNT))
+		final Long last = distributionCounts.put(key, count);
+		final long updates = (last == null || count < last) ? count : count - last;
+		if (updates == 0)
+		{
+			return;
+		}
+
+		final long start = System.nanoTime();
+		final long[] raw = sampling.getSnapshot().getValues();
+		final int sent = (int) Math.min(raw.length, updates);
+		final double[] values = new double[sent];
+		for (int i = 0; i < sent; i++)
 		{
-			request.addCounter(new DatadogCounter(appendExpansionSuffix(name, Expansion.COUNT), meter.getCount(),
-					timestamp, host, tags));
+			// the middle value of each of the sent equal ranges of ranks
+			final long value = raw[(int) ((2L * i + 1) * raw.length / (2L * sent))];
+			values[i] = durations ? convertDuration(value) : value;
+		}
+		partition.snapshotNanos += System.nanoTime() - start;
+
+		if (sent > 0)
+		{
+			partition.series++;
+			partition.distributions.addDistribution(names.get(key, tags), values, (double) sent / updates);
+		}
+	}
+
+	/**
+	 * Forget the count of the timers and histograms that were removed from the registry.
+	 */
+	private void forgetRemovedDistributions(Map<String, Histogram> histograms, Map<String, Timer> timers)
+	{
+		for (Iterator<String> it = distributionCounts.keySet().iterator(); it.hasNext();)
+		{
+			final String key = it.next();
+			if (!histograms.containsKey(key) && !timers.containsKey(key))
+			{
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Compute the statistics of the snapshot that the expansions ask for into {@code stats},
+	 * in the order of {@link #STATS_EXPANSIONS}. The snapshot holds its values sorted, so the
+	 * extremes and quantiles are lookups, but the mean and the standard deviation are passes over
+	 * all of them, and are skipped unless asked for.
+	 */
+	private static void computeStats(Snapshot snapshot, EnumSet<Expansion> expansions, double[] stats)
+	{
+		for (int i = 0; i < STATS_EXPANSIONS.length; i++)
+		{
+			final Expansion expansion = STATS_EXPANSIONS[i];
+			if (!expansions.contains(expansion))
+			{
+				continue;
+			}
+			switch (expansion)
+			{
+			case MAX:
+				stats[i] = snapshot.getMax();
+				break;
+			case MEAN:
+				stats[i] = snapshot.getMean();
+				break;
+			case MIN:
+				stats[i] = snapshot.getMin();
+				break;
+			case STD_DEV:
+				stats[i] = snapshot.getStdDev();
+				break;
+			case MEDIAN:
+				stats[i] = snapshot.getMedian();
+				break;
+			case P75:
+				stats[i] = snapshot.get75thPercentile();
+				break;
+			case P95:
+				stats[i] = snapshot.get95thPercentile();
+				break;
+			case P98:
+				stats[i] = snapshot.get98thPercentile();
+				break;
+			case P99:
+				stats[i] = snapshot.get99thPercentile();
+				break;
+			default:
+				stats[i] = snapshot.get999thPercentile();
+				break;
+			}
 		}
+	}
 
-		double[] values =
-		{ meter.getOneMinuteRate(), meter.getFiveMinuteRate(), meter.getFifteenMinuteRate(), meter.getMeanRate() };
+	private void reportMetered(Partition partition, String key, Metered meter, long timestamp, List<String> tags) throws IOException
+	{
+		final EnumSet<Expansion> expansions = names.expansions(key);
+		final boolean delta = (meter instanceof IntervalMeter);
+		final long start = System.nanoTime();
+		final long count = delta ? ((IntervalMeter) meter).drain() : meter.getCount();
+		computeRates(meter, expansions, partition.rates);
+		partition.snapshotNanos += System.nanoTime() - start;
+
+		if (expansions.contains(Expansion.COUNT))
+		{
+			addCounter(partition, names.get(key, Expansion.COUNT, tags), count, delta, timestamp);
+		}
 
 		for (int i = 0; i < RATE_EXPANSIONS.length; i++)
 		{
 			if (expansions.contains(RATE_EXPANSIONS[i]))
 			{
-				request.addGauge(new DatadogGauge(appendExpansionSuffix(name, RATE_EXPANSIONS[i]),
-						toNumber(convertRate(values[i])), timestamp, host, tags));
+				addGauge(partition, names.get(key, RATE_EXPANSIONS[i], tags),
+						toNumber(convertRate(partition.rates[i])), timestamp);
+			}
+		}
+	}
+
+	/**
+	 * Read the rates of the meter that the expansions ask for into {@code rates}, in the order of
+	 * {@link #RATE_EXPANSIONS}. Reading a moving average may tick it, and an {@link IntervalMeter} only keeps
+	 * them once they are read, so rates that are not sent are not read at all.
+	 */
+	private static void computeRates(Metered meter, EnumSet<Expansion> expansions, double[] rates)
+	{
+		for (int i = 0; i < RATE_EXPANSIONS.length; i++)
+		{
+			final Expansion expansion = RATE_EXPANSIONS[i];
+			if (!expansions.contains(expansion))
+			{
+				continue;
+			}
+			switch (expansion)
+			{
+			case RATE_1_MINUTE:
+				rates[i] = meter.getOneMinuteRate();
+				break;
+			case RATE_5_MINUTE:
+				rates[i] = meter.getFiveMinuteRate();
+				break;
+			case RATE_15_MINUTE:
+				rates[i] = meter.getFifteenMinuteRate();
+				break;
+			default:
+				rates[i] = meter.getMeanRate();
+				break;
 			}
 		}
 	}
 
-	private void reportHistogram(String name, Histogram histogram, long timestamp, List<String> tags)
+	private void reportHistogram(Partition partition, String key, Histogram histogram, long timestamp, List<String> tags)
 			throws IOException
 	{
-		final Snapshot snapshot = histogram.getSnapshot();
+		final EnumSet<Expansion> expansions = names.expansions(key);
+		final boolean distribution = (partition.distributions != null);
+		final long start = System.nanoTime();
+		final long count = histogram.getCount();
+		if (!distribution)
+		{
+			computeStats(histogram.getSnapshot(), expansions, partition.stats);
+		}
+		partition.snapshotNanos += System.nanoTime() - start;
 
 		if (expansions.contains(Expansion.COUNT))
 		{
-			request.addCounter(new DatadogCounter(appendExpansionSuffix(name, Expansion.COUNT), histogram.getCount(),
-					timestamp, host, tags));
+			addCounter(partition, names.get(key, Expansion.COUNT, tags), count, timestamp);
 		}
 
-		Number[] values =
-		{ snapshot.getMax(), snapshot.getMean(), snapshot.getMin(), snapshot.getStdDev(), snapshot.getMedian(),
-				snapshot.get75thPercentile(), snapshot.get95thPercentile(), snapshot.get98thPercentile(),
-				snapshot.get99thPercentile(), snapshot.get999thPercentile() };
+		if (distribution)
+		{
+			if (!Collections.disjoint(expansions, STATS))
+			{
+				addDistribution(partition, key, histogram, count, false, tags);
+			}
+			return;
+		}
 
 		for (int i = 0; i < STATS_EXPANSIONS.length; i++)
 		{
 			if (expansions.contains(STATS_EXPANSIONS[i]))
 			{
-				request.addGauge(new DatadogGauge(appendExpansionSuffix(name, STATS_EXPANSIONS[i]),
-						toNumber(values[i]), timestamp, host, tags));
+				// the min and max of a histogram are recorded values, sent as integers
+				final Expansion expansion = STATS_EXPANSIONS[i];
+				final Number value = (expansion == Expansion.MAX || expansion == Expansion.MIN)
+						? (Number) (long) partition.stats[i] : (Number) partition.stats[i];
+				addGauge(partition, names.get(key, expansion, tags), value, timestamp);
 			}
 		}
 	}
 
-	private void reportCounter(String name, Counter counter, long timestamp, List<String> tags) throws IOException
+	private void reportSketch(Partition partition, String key, QuantileSketch sketch, long timestamp, List<String> tags)
+			throws IOException
 	{
-		request.addCounter(new DatadogCounter(name, counter.getCount(), timestamp, host, tags));
+		final EnumSet<Expansion> expansions = names.expansions(key);
+		final long start = System.nanoTime();
+		final long count = sketch.getCount();
+		final QuantileSketch interval = sketch.drain();
+		if (partition.distributions == null && !interval.isEmpty())
+		{
+			computeStats(interval, expansions, partition.stats);
+		}
+		partition.snapshotNanos += System.nanoTime() - start;
+
+		if (expansions.contains(Expansion.COUNT))
+		{
+			addCounter(partition, names.get(key, Expansion.COUNT, tags), count, timestamp);
+		}
+
+		if (interval.isEmpty() || Collections.disjoint(expansions, STATS))
+		{
+			return;
+		}
+		if (partition.distributions != null)
+		{
+			final long[] counts = new long[interval.bins()];
+			final double[] values = interval.values(counts);
+			partition.series++;
+			partition.distributions.addDistribution(names.get(key, tags), values, counts);
+			return;
+		}
+		for (int i = 0; i < STATS_EXPANSIONS.length; i++)
+		{
+			if (expansions.contains(STATS_EXPANSIONS[i]))
+			{
+				addGauge(partition, names.get(key, STATS_EXPANSIONS[i], tags), partition.stats[i], timestamp);
+			}
+		}
+	}
+
+	/**
+	 * The statistics of a sketch, like {@link #computeStats(Snapshot, EnumSet, double[])}.
+	 */
+	private static void computeStats(QuantileSketch sketch, EnumSet<Expansion> expansions, double[] stats)
+	{
+		for (int i = 0; i < STATS_EXPANSIONS.length; i++)
+		{
+			final Expansion expansion = STATS_EXPANSIONS[i];
+			if (!expansions.contains(expansion))
+			{
+				continue;
+			}
+			switch (expansion)
+			{
+			case MAX:
+				stats[i] = sketch.getMax();
+				break;
+			case MEAN:
+				stats[i] = sketch.getMean();
+				break;
+			case MIN:
+				stats[i] = sketch.getMin();
+				break;
+			case STD_DEV:
+				stats[i] = sketch.getStdDev();
+				break;
+			case MEDIAN:
+				stats[i] = sketch.getQuantile(0.5);
+				break;
+			case P75:
+				stats[i] = sketch.getQuantile(0.75);
+				break;
+			case P95:
+				stats[i] = sketch.getQuantile(0.95);
+				break;
+			case P98:
+				stats[i] = sketch.getQuantile(0.98);
+				break;
+			case P99:
+				stats[i] = sketch.getQuantile(0.99);
+				break;
+			default:
+				stats[i] = sketch.getQuantile(0.999);
+				break;
+			}
+		}
 	}
 
-	private void reportGauge(String name, Gauge gauge, long timestamp, List<String> tags) throws IOException
+	private void reportCounter(Partition partition, String key, Counter counter, long timestamp, List<String> tags) throws IOException
 	{
-		final Number value = toNumber(gauge.getValue());
+		if (counter instanceof IntervalCounter)
+		{
+			addCounter(partition, names.get(key, tags), ((IntervalCounter) counter).drain(), true, timestamp);
+		}
+		else
+		{
+			addCounter(partition, names.get(key, tags), counter.getCount(), timestamp);
+		}
+	}
+
+	private void reportGauge(Partition partition, String key, Gauge gauge, long timestamp, List<String> tags) throws IOException
+	{
+		final long start = System.nanoTime();
+		final Object raw = (gaugeEvaluator != null) ? gaugeEvaluator.evaluate(key, gauge) : gauge.getValue();
+		final Number value = toNumber(raw);
+		partition.snapshotNanos += System.nanoTime() - start;
 		if (value != null)
 		{
-			request.addGauge(new DatadogGauge(name, value, timestamp, host, tags));
+			addGauge(partition, names.get(key, tags), value, timestamp);
 		}
 	}
 
@@ -209,22 +837,91 @@ public class DatadogReporter extends ScheduledReporter
 		return null;
 	}
 
-	private String appendExpansionSuffix(String name, Expansion expansion)
+	/**
+	 * The state of building the series of one part of a report: the request they are added to,
+	 * the same request if timers and histograms are sent as distributions, the time spent reading
+	 * the metrics and the number of series added.
+	 */
+	private static final class Partition
 	{
-		return metricNameFormatter.format(name, expansion.toString());
+		final Transport.Request request;
+		final Transport.DistributionRequest distributions;
+		final double[] stats = new double[STATS_EXPANSIONS.length];
+		final double[] rates = new double[RATE_EXPANSIONS.length];
+		long snapshotNanos;
+		int series;
+
+		Partition(Transport.Request request, boolean distributions)
+		{
+			this.request = request;
+			this.distributions = distributions ? (Transport.DistributionRequest) request : null;
+		}
 	}
 
-	private String prefix(String name)
+	/**
+	 * The metrics of a report in a single sequence, gauges first, then counters, histograms,
+	 * meters and timers, each sorted by name. Holds the index at which each kind starts, since a
+	 * metric may be of several kinds.
+	 */
+	private static final class Metrics
 	{
-		if (prefix == null)
+		final String[] keys;
+		final Metric[] metrics;
+		final int counters;
+		final int histograms;
+		final int meters;
+		final int timers;
+		private int size;
+
+		Metrics(SortedMap<String, Gauge> gauges, SortedMap<String, Counter> counters,
+				SortedMap<String, Histogram> histograms, SortedMap<String, Meter> meters, SortedMap<String, Timer> timers)
+		{
+			final int total = gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size();
+			this.keys = new String[total];
+			this.metrics = new Metric[total];
+			add(gauges);
+			this.counters = size;
+			add(counters);
+			this.histograms = size;
+			add(histograms);
+			this.meters = size;
+			add(meters);
+			this.timers = size;
+			add(timers);
+		}
+
+		private void add(SortedMap<String, ? extends Metric> map)
 		{
-			return name;
-		} else
+			for (Map.Entry<String, ? extends Metric> entry : map.entrySet())
+			{
+				keys[size] = entry.getKey();
+				metrics[size] = entry.getValue();
+				size++;
+			}
+		}
+
+		int size()
 		{
-			return String.format("%s.%s", prefix, name);
+			return size;
 		}
 	}
 
+	/**
+	 * What to send for a gauge that could not be read within its time budget, see
+	 * {@link Builder#withGaugeTimeout(long, TimeUnit)}.
+	 */
+	public static enum GaugeTimeoutPolicy
+	{
+		/**
+		 * Send the last value read, if any.
+		 */
+		LAST_VALUE,
+		/**
+		 * Send nothing.
+		 */
+		SKIP
+	}
+
 	public static enum Expansion
 	{
 		COUNT("count"), RATE_MEAN("meanRate"), RATE_1_MINUTE("1MinuteRate"), RATE_5_MINUTE("5MinuteRate"), RATE_15_MINUTE(
@@ -233,6 +930,13 @@ public class DatadogReporter extends ScheduledReporter
 
 		public static EnumSet<Expansion> ALL = EnumSet.allOf(Expansion.class);
 
+		/**
+		 * Every expansion but the rates of meters and timers, which need not be computed nor sent when counts
+		 * are sent as datadog counts or rates, see {@link org.coursera.metrics.datadog.transport.HttpTransport.CounterType}.
+		 */
+		public static EnumSet<Expansion> ALL_BUT_RATES = EnumSet.complementOf(EnumSet.of(RATE_MEAN, RATE_1_MINUTE,
+				RATE_5_MINUTE, RATE_15_MINUTE));
+
 		private final String displayName;
 
 		private Expansion(String displayName)
@@ -257,6 +961,7 @@ public class DatadogReporter extends ScheduledReporter
 		private final MetricRegistry registry;
 		private String host;
 		private EnumSet<Expansion> expansions;
+		private ExpansionPolicy expansionPolicy;
 		private Clock clock;
 		private TimeUnit rateUnit;
 		private TimeUnit durationUnit;
@@ -266,6 +971,14 @@ public class DatadogReporter extends ScheduledReporter
 		private Transport transport;
 		private String prefix;
 		private DynamicTagsCallback tagsCallback;
+		private MetricRegistry selfMetricsRegistry;
+		private String selfMetricsNamespace;
+		private int heartbeat;
+		private int parallelism;
+		private ExecutorService executor;
+		private long gaugeTimeout;
+		private int gaugeThreads;
+		private GaugeTimeoutPolicy gaugeTimeoutPolicy;
 
 		public Builder(MetricRegistry registry)
 		{
@@ -277,6 +990,10 @@ public class DatadogReporter extends ScheduledReporter
 			this.filter = MetricFilter.ALL;
 			this.metricNameFormatter = new DefaultMetricNameFormatter();
 			this.tags = new ArrayList<String>();
+			this.selfMetricsNamespace = "datadog.reporter";
+			this.parallelism = 1;
+			this.gaugeThreads = 2;
+			this.gaugeTimeoutPolicy = GaugeTimeoutPolicy.LAST_VALUE;
 		}
 
 		public Builder withHost(String host)
@@ -291,12 +1008,25 @@ public class DatadogReporter extends ScheduledReporter
 			return this;
 		}
 
+		/**
+		 * The expansions sent for every timer, histogram and meter. Defaults to all of them.
+		 */
 		public Builder withExpansions(EnumSet<Expansion> expansions)
 		{
 			this.expansions = expansions;
 			return this;
 		}
 
+		/**
+		 * Pick the expansions sent for each timer, histogram and meter, e.g. with a
+		 * {@link PatternExpansionPolicy}. Takes precedence over {@link #withExpansions(EnumSet)}.
+		 */
+		public Builder withExpansionPolicy(ExpansionPolicy expansionPolicy)
+		{
+			this.expansionPolicy = expansionPolicy;
+			return this;
+		}
+
 		public Builder withDynamicTagCallback(DynamicTagsCallback tagsCallback)
 		{
 			this.tagsCallback = tagsCallback;
@@ -360,6 +1090,114 @@ public class DatadogReporter extends ScheduledReporter
 			return this;
 		}
 
+		/**
+		 * Register the reporter's own metrics, see {@link DatadogReporter#getMetrics()}, in the
+		 * given registry. This may be the registry being reported, so that they are sent to datadog
+		 * along with the rest, or a separate one watched by another reporter. They are removed
+		 * when the reporter is stopped.
+		 */
+		public Builder withSelfMetrics(MetricRegistry selfMetricsRegistry)
+		{
+			this.selfMetricsRegistry = selfMetricsRegistry;
+			return this;
+		}
+
+		/**
+		 * The namespace of the reporter's own metrics. Defaults to {@code datadog.reporter}.
+		 */
+		public Builder withSelfMetricsNamespace(String selfMetricsNamespace)
+		{
+			this.selfMetricsNamespace = selfMetricsNamespace;
+			return this;
+		}
+
+		/**
+		 * Skip the series whose value did not change since they were last sent, but still send
+		 * each of them at least once every {@code heartbeat} reports so that it does not go stale.
+		 * Skipped series are counted by the {@code series.suppressed} self metric. 0, the default,
+		 * sends every series in every report.
+		 * <p/>
+		 * With a transport that keeps the last count of each counter, see
+		 * {@link Transport.CounterTracking}, the heartbeat is lowered to its counter expiry if
+		 * needed, or the count of a counter idle for longer would be sent again in full when it
+		 * changes. A value only counts as sent once the request of its report was sent.
+		 */
+		public Builder withChangeSuppression(int heartbeat)
+		{
+			this.heartbeat = heartbeat;
+			return this;
+		}
+
+		/**
+		 * Read the metrics and build their series on this many threads. The metrics are cut into
+		 * contiguous parts, a few per thread, whose series are copied to the transport request in
+		 * the order of the metrics, so the output is the same as a sequential report. Small
+		 * registries are still reported on the reporter thread. The reporter owns the threads and
+		 * stops them when it is stopped. 1, the default, reports on the reporter thread.
+		 * <p/>
+		 * Gauges, and the dynamic tags callback if any, are then called from several threads.
+		 */
+		public Builder withParallelism(int threads)
+		{
+			return withParallelism(threads, null);
+		}
+
+		/**
+		 * Like {@link #withParallelism(int)}, but on the given executor, e.g. a
+		 * {@code ForkJoinPool} shared with the application. The reporter does not shut it down.
+		 *
+		 * @param parallelism
+		 *            the number of threads of the executor that the report should keep busy
+		 */
+		public Builder withParallelism(int parallelism, ExecutorService executor)
+		{
+			if (parallelism < 1)
+			{
+				throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+			}
+			this.parallelism = parallelism;
+			this.executor = executor;
+			return this;
+		}
+
+		/**
+		 * Read gauges on a pool of worker threads, and give up on a gauge that takes longer than
+		 * this, so that a gauge that blocks does not hold up the report. The gauge is left to finish
+		 * in the background and not read again until it does; meanwhile what is sent depends on
+		 * {@link #withGaugeTimeoutPolicy(GaugeTimeoutPolicy)}. The time taken by gauges, the
+		 * slowest ones and the timeouts are reported under {@code gauges.} in the self metrics.
+		 * Disabled by default: gauges are read on the reporter thread without a limit.
+		 */
+		public Builder withGaugeTimeout(long timeout, TimeUnit unit)
+		{
+			this.gaugeTimeout = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * What to send for a gauge that timed out. Defaults to its last value.
+		 */
+		public Builder withGaugeTimeoutPolicy(GaugeTimeoutPolicy policy)
+		{
+			this.gaugeTimeoutPolicy = policy;
+			return this;
+		}
+
+		/**
+		 * The number of threads reading gauges when they have a timeout. Each gauge stuck past its
+		 * timeout holds one of them until it returns, and once they are all held the other gauges
+		 * fall back without being read. Default is 2.
+		 */
+		public Builder withGaugeThreads(int threads)
+		{
+			if (threads < 1)
+			{
+				throw new IllegalArgumentException("Gauge threads must be positive: " + threads);
+			}
+			this.gaugeThreads = threads;
+			return this;
+		}
+
 		/**
 		 * The transport mechanism to push metrics to datadog. Supports http
 		 * webservice and UDP dogstatsd protocol as of now.
@@ -380,9 +1218,13 @@ public class DatadogReporter extends ScheduledReporter
 				throw new IllegalArgumentException("Transport for datadog reporter is null. "
 						+ "Please set a valid transport");
 			}
+			ExpansionPolicy policy = (expansionPolicy != null)
+					? expansionPolicy : new PatternExpansionPolicy.Builder(expansions).build();
 			return new DatadogReporter(this.registry, this.transport, this.filter, this.clock, this.host,
-					this.expansions, this.rateUnit, this.durationUnit, this.metricNameFormatter, this.tags,
-					this.prefix, this.tagsCallback);
+					policy, this.rateUnit, this.durationUnit, this.metricNameFormatter, this.tags,
+					this.prefix, this.tagsCallback, this.selfMetricsRegistry, this.selfMetricsNamespace,
+					this.heartbeat, this.parallelism, this.executor, this.gaugeTimeout, this.gaugeThreads,
+					this.gaugeTimeoutPolicy);
 		}
 	}
 }
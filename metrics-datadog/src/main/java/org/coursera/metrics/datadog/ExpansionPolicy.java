@@ -0,0 +1,19 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+
+import java.util.EnumSet;
+
+/**
+ * Decides which expansions of a timer, histogram or meter are sent, so that percentiles can be
+ * kept for the metrics that need them without sending them for every other one. The reporter
+ * asks once per metric and caches the answer until the metric is removed from the registry.
+ *
+ * @see PatternExpansionPolicy
+ */
+public interface ExpansionPolicy {
+  /**
+   * @return the expansions to send for the metric registered under {@code name}
+   */
+  public EnumSet<Expansion> getExpansions(String name);
+}
@@ -0,0 +1,282 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads gauges on a pool of worker threads with a time budget per gauge, so that a gauge that
+ * blocks delays neither the report nor the other gauges. A gauge that runs out of time is left
+ * to finish in the background, and is not read again until it does; meanwhile its last value is
+ * sent, or nothing, depending on the {@link DatadogReporter.GaugeTimeoutPolicy}.
+ * <p/>
+ * The budget of a gauge starts when a worker starts reading it, not when it is queued. A gauge
+ * waits at most one budget for a worker, and once every worker is held by a gauge that ran out of
+ * time the others fall back right away, so stuck gauges cost a report at most a budget each.
+ * <p/>
+ * The evaluator keeps the last value and the last duration of each gauge until it is removed
+ * from the registry, which it listens to.
+ */
+class GaugeEvaluator extends MetricRegistryListener.Base implements MetricSet {
+  private static final Logger LOG = LoggerFactory.getLogger(GaugeEvaluator.class);
+  private static final int SLOWEST = 10;
+
+  private final long timeoutNanos;
+  private final int threads;
+  private final boolean useLastValue;
+  private final AtomicInteger stuck = new AtomicInteger();
+  private final ExecutorService executor;
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final Timer evaluations = new Timer();
+  private final Counter timeouts = new Counter();
+  private final Counter failures = new Counter();
+  private final Counter stale = new Counter();
+  private final Counter skipped = new Counter();
+  private final Counter saturated = new Counter();
+
+  GaugeEvaluator(long timeout, TimeUnit unit, int threads,
+      DatadogReporter.GaugeTimeoutPolicy policy) {
+    this.timeoutNanos = unit.toNanos(timeout);
+    this.threads = threads;
+    this.useLastValue = (policy == DatadogReporter.GaugeTimeoutPolicy.LAST_VALUE);
+    this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "datadog-gauges-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * The value of the gauge registered under {@code key}, or its last value or null if it could
+   * not be read within the budget.
+   */
+  Object evaluate(String key, final Gauge gauge) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry();
+      Entry existing = entries.putIfAbsent(key, entry);
+      if (existing != null) {
+        entry = existing;
+      }
+    }
+
+    Future<?> pending = entry.pending;
+    if (pending != null && !pending.isDone()) {
+      // still stuck in a previous report, don't tie up another worker with it
+      return fallback(entry);
+    }
+    if (stuck.get() >= threads) {
+      // every worker is held by a stuck gauge, this one would only wait in the queue
+      saturated.inc();
+      return fallback(entry);
+    }
+
+    final Entry current = entry;
+    final Read read = new Read(key);
+    current.started = 0;
+    Future<Object> future = executor.submit(new Callable<Object>() {
+      public Object call() {
+        final long start = System.nanoTime();
+        current.started = start;
+        read.started.countDown();
+        try {
+          // kept even when the report gave up waiting, for the next one to send
+          Object value = gauge.getValue();
+          current.value = value;
+          return value;
+        } finally {
+          current.nanos = System.nanoTime() - start;
+          evaluations.update(current.nanos, TimeUnit.NANOSECONDS);
+          read.finish(current.nanos);
+        }
+      }
+    });
+    try {
+      if (!read.started.await(timeoutNanos, TimeUnit.NANOSECONDS) && future.cancel(false)) {
+        // no worker freed up within a budget, the gauge was never read
+        entry.pending = null;
+        saturated.inc();
+        return fallback(entry);
+      }
+      long remaining = Math.max(0, current.started + timeoutNanos - System.nanoTime());
+      Object value = future.get(remaining, TimeUnit.NANOSECONDS);
+      entry.pending = null;
+      return value;
+    } catch (TimeoutException e) {
+      entry.pending = future;
+      read.markStuck();
+      timeouts.inc();
+      LOG.warn("Gauge " + key + " took longer than " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos)
+          + " ms to read");
+      return fallback(entry);
+    } catch (ExecutionException e) {
+      entry.pending = null;
+      failures.inc();
+      skipped.inc();
+      LOG.debug("Unable to read gauge " + key, e.getCause());
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      entry.pending = future;
+      return fallback(entry);
+    }
+  }
+
+  private Object fallback(Entry entry) {
+    if (useLastValue && entry.value != null) {
+      stale.inc();
+      return entry.value;
+    }
+    skipped.inc();
+    return null;
+  }
+
+  /**
+   * The time in milliseconds taken by the slowest gauge the last time it was read, or so far if
+   * it is still being read.
+   */
+  double slowestMillis() {
+    final long now = System.nanoTime();
+    long slowest = 0;
+    for (Entry entry : entries.values()) {
+      slowest = Math.max(slowest, entry.duration(now));
+    }
+    return slowest / 1e6;
+  }
+
+  /**
+   * The gauges that took the longest to read the last time they were, slowest first, with
+   * their durations in milliseconds. A gauge still being read counts with the time so far.
+   */
+  Map<String, Double> slowest() {
+    final long now = System.nanoTime();
+    final Map<String, Long> durations = new HashMap<String, Long>();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      durations.put(entry.getKey(), entry.getValue().duration(now));
+    }
+    List<String> keys = new ArrayList<String>(durations.keySet());
+    Collections.sort(keys, new Comparator<String>() {
+      public int compare(String a, String b) {
+        return durations.get(b).compareTo(durations.get(a));
+      }
+    });
+    Map<String, Double> slowest = new LinkedHashMap<String, Double>();
+    for (String key : keys.subList(0, Math.min(SLOWEST, keys.size()))) {
+      slowest.put(key, durations.get(key) / 1e6);
+    }
+    return slowest;
+  }
+
+  void stop() {
+    executor.shutdownNow();
+  }
+
+  @Override
+  public void onGaugeRemoved(String name) {
+    entries.remove(name);
+  }
+
+  /**
+   * The time taken to read gauges, the number of reads that ran out of time or failed, of reads
+   * not started because every worker was busy, of gauges sent with their last value or not sent
+   * because of it, and the read time of the slowest gauge. {@code gauges.slowest} lists the
+   * slowest gauges by name; it is not a number, and is meant to be looked at in a metrics
+   * servlet or JMX rather than sent to datadog, where the names of the gauges that run out of
+   * time show in the warnings logged when they do and when they return.
+   */
+  public Map<String, Metric> getMetrics() {
+    Map<String, Metric> metrics = new HashMap<String, Metric>();
+    metrics.put("gauges.evaluation", evaluations);
+    metrics.put("gauges.timeouts", timeouts);
+    metrics.put("gauges.failures", failures);
+    metrics.put("gauges.stale", stale);
+    metrics.put("gauges.skipped", skipped);
+    metrics.put("gauges.saturated", saturated);
+    metrics.put("gauges.slowest.millis", new Gauge<Double>() {
+      public Double getValue() {
+        return slowestMillis();
+      }
+    });
+    metrics.put("gauges.slowest", new Gauge<Map<String, Double>>() {
+      public Map<String, Double> getValue() {
+        return slowest();
+      }
+    });
+    return metrics;
+  }
+
+  /**
+   * One read of a gauge, which counts as stuck from the time it runs out of budget until it
+   * returns.
+   */
+  private final class Read {
+    private static final int RUNNING = 0;
+    private static final int STUCK = 1;
+    private static final int DONE = 2;
+
+    final CountDownLatch started = new CountDownLatch(1);
+    private final String key;
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+    Read(String key) {
+      this.key = key;
+    }
+
+    void markStuck() {
+      if (state.compareAndSet(RUNNING, STUCK)) {
+        stuck.incrementAndGet();
+      }
+    }
+
+    void finish(long nanos) {
+      if (state.getAndSet(DONE) == STUCK) {
+        stuck.decrementAndGet();
+        LOG.warn("Gauge " + key + " returned after " + TimeUnit.NANOSECONDS.toMillis(nanos)
+            + " ms");
+      }
+    }
+  }
+
+  private static final class Entry {
+    volatile Object value;
+    volatile Future<?> pending;
+    volatile long started;
+    volatile long nanos;
+
+    long duration(long now) {
+      Future<?> future = pending;
+      long start = started;
+      return (future != null && !future.isDone() && start != 0)
+          ? Math.max(nanos, now - start) : nanos;
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * A counter for very hot code paths, that adds to a {@link StripedLong} and hands the count
+ * since the previous report to {@link DatadogReporter} with {@link #drain()}. The reporter sends
+ * that as a datadog count, so neither it nor the dogstatsd transports keep the last count of the
+ * counter to compute the difference.
+ * <p/>
+ * {@link #getCount()} is still the count since the counter was created, for other reporters.
+ * The drained count should be taken by a single reporter.
+ */
+public class IntervalCounter extends Counter {
+  private final StripedLong count = new StripedLong();
+  private long drained;
+
+  @Override
+  public void inc() {
+    count.add(1);
+  }
+
+  @Override
+  public void inc(long n) {
+    count.add(n);
+  }
+
+  @Override
+  public void dec() {
+    count.add(-1);
+  }
+
+  @Override
+  public void dec(long n) {
+    count.add(-n);
+  }
+
+  @Override
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * The count added since the previous call, or since the counter was created.
+   */
+  public synchronized long drain() {
+    long total = count.sum();
+    long delta = total - drained;
+    drained = total;
+    return delta;
+  }
+}
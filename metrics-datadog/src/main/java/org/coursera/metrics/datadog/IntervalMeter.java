@@ -0,0 +1,116 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.EWMA;
+import com.codahale.metrics.Meter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A meter for very hot code paths. Marking is a single add to a {@link StripedLong}, without
+ * reading the clock or updating the moving averages, which catch up with the marks whenever
+ * they are read. Like {@link IntervalCounter}, it hands the count since the previous report to
+ * {@link DatadogReporter} with {@link #drain()}.
+ */
+public class IntervalMeter extends Meter {
+  private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+  private final StripedLong count = new StripedLong();
+  private final Clock clock;
+  private final long startTime;
+  private final EWMA m1Rate = EWMA.oneMinuteEWMA();
+  private final EWMA m5Rate = EWMA.fiveMinuteEWMA();
+  private final EWMA m15Rate = EWMA.fifteenMinuteEWMA();
+  private long lastTick;
+  private long ticked;
+  private long drained;
+
+  public IntervalMeter() {
+    this(Clock.defaultClock());
+  }
+
+  public IntervalMeter(Clock clock) {
+    super(clock);
+    this.clock = clock;
+    this.startTime = clock.getTick();
+    this.lastTick = startTime;
+  }
+
+  @Override
+  public void mark() {
+    count.add(1);
+  }
+
+  @Override
+  public void mark(long n) {
+    count.add(n);
+  }
+
+  @Override
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * The number of events marked since the previous call, or since the meter was created.
+   */
+  public synchronized long drain() {
+    long total = count.sum();
+    long delta = total - drained;
+    drained = total;
+    return delta;
+  }
+
+  @Override
+  public double getMeanRate() {
+    long total = getCount();
+    if (total == 0) {
+      return 0.0;
+    }
+    double elapsed = clock.getTick() - startTime;
+    return total / elapsed * TimeUnit.SECONDS.toNanos(1);
+  }
+
+  @Override
+  public double getOneMinuteRate() {
+    tickIfNecessary();
+    return m1Rate.getRate(TimeUnit.SECONDS);
+  }
+
+  @Override
+  public double getFiveMinuteRate() {
+    tickIfNecessary();
+    return m5Rate.getRate(TimeUnit.SECONDS);
+  }
+
+  @Override
+  public double getFifteenMinuteRate() {
+    tickIfNecessary();
+    return m15Rate.getRate(TimeUnit.SECONDS);
+  }
+
+  /**
+   * Feed the marks since the last tick to the averages and tick them once per interval elapsed.
+   * Marks made over several intervals are spread evenly over them, as they are not timed.
+   */
+  private synchronized void tickIfNecessary() {
+    long age = clock.getTick() - lastTick;
+    if (age <= TICK_INTERVAL) {
+      return;
+    }
+    long ticks = age / TICK_INTERVAL;
+    lastTick += ticks * TICK_INTERVAL;
+    long total = count.sum();
+    long marked = total - ticked;
+    ticked = total;
+    for (long i = 0; i < ticks; i++) {
+      long share = (long) ((double) marked * (i + 1) / ticks) - (long) ((double) marked * i / ticks);
+      m1Rate.update(share);
+      m5Rate.update(share);
+      m15Rate.update(share);
+      m1Rate.tick();
+      m5Rate.tick();
+      m15Rate.tick();
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.coursera.metrics.datadog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The reporter's static tags merged with each distinct list of dynamic tags, so that a callback
+ * returning the same tags from one report to the next costs a hash lookup rather than a merge.
+ * Merged tags are immutable, sorted by key and interned. Lookups don't lock, and may be made
+ * from several threads.
+ * <p/>
+ * Past {@code maxEntries} distinct dynamic tag lists, new ones are merged without being cached,
+ * so that a callback returning ever changing tags can't grow the cache without bound.
+ */
+class MergedTagsCache {
+  static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  private final List<String> staticTags;
+  private final int maxEntries;
+  private final ConcurrentMap<List<String>, List<String>> merged =
+      new ConcurrentHashMap<List<String>, List<String>>();
+
+  MergedTagsCache(List<String> staticTags, int maxEntries) {
+    this.staticTags = new ArrayList<String>(staticTags);
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * The static tags merged with the given dynamic tags, as {@link TagsMerger#mergeTags} would.
+   */
+  List<String> get(List<String> dynamicTags) {
+    List<String> tags = merged.get(dynamicTags);
+    if (tags == null) {
+      tags = canonical(TagsMerger.mergeTags(staticTags, dynamicTags));
+      if (merged.size() < maxEntries) {
+        // keyed by a copy, in case the callback reuses its list
+        List<String> existing = merged.putIfAbsent(new ArrayList<String>(dynamicTags), tags);
+        if (existing != null) {
+          tags = existing;
+        }
+      }
+    }
+    return tags;
+  }
+
+  int size() {
+    return merged.size();
+  }
+
+  private static List<String> canonical(List<String> tags) {
+    String[] interned = new String[tags.size()];
+    for (int i = 0; i < interned.length; i++) {
+      interned[i] = tags.get(i).intern();
+    }
+    return Collections.unmodifiableList(Arrays.asList(interned));
+  }
+}
@@ -0,0 +1,69 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the expansions of a metric by matching its registry name against a list of regular
+ * expressions, in the order they were added. The first pattern found in the name wins, and
+ * metrics that match none of them get the default expansions.
+ *
+ * <pre>
+ * new PatternExpansionPolicy.Builder(EnumSet.of(Expansion.COUNT, Expansion.MEDIAN))
+ *     .withRule("^api\\.", EnumSet.of(Expansion.COUNT, Expansion.P99, Expansion.P999))
+ *     .build();
+ * </pre>
+ */
+public class PatternExpansionPolicy implements ExpansionPolicy {
+
+  private final EnumSet<Expansion> defaults;
+  private final List<Pattern> patterns;
+  private final List<EnumSet<Expansion>> expansions;
+
+  private PatternExpansionPolicy(Builder builder) {
+    this.defaults = builder.defaults;
+    this.patterns = new ArrayList<Pattern>(builder.patterns);
+    this.expansions = new ArrayList<EnumSet<Expansion>>(builder.expansions);
+  }
+
+  public EnumSet<Expansion> getExpansions(String name) {
+    for (int i = 0; i < patterns.size(); i++) {
+      if (patterns.get(i).matcher(name).find()) {
+        return expansions.get(i);
+      }
+    }
+    return defaults;
+  }
+
+  public static class Builder {
+    private final EnumSet<Expansion> defaults;
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final List<EnumSet<Expansion>> expansions = new ArrayList<EnumSet<Expansion>>();
+
+    /**
+     * @param defaults
+     *            the expansions of the metrics that match none of the rules
+     */
+    public Builder(EnumSet<Expansion> defaults) {
+      this.defaults = EnumSet.copyOf(defaults);
+    }
+
+    /**
+     * Send the given expansions for the metrics whose name contains a match of {@code regex},
+     * unless an earlier rule matched.
+     */
+    public Builder withRule(String regex, EnumSet<Expansion> expansions) {
+      this.patterns.add(Pattern.compile(regex));
+      this.expansions.add(EnumSet.copyOf(expansions));
+      return this;
+    }
+
+    public PatternExpansionPolicy build() {
+      return new PatternExpansionPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,456 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A histogram that keeps the distribution of the values it is updated with in a quantile sketch
+ * with relative error guarantees, in the manner of DDSketch: a value is counted in the bin
+ * {@code ceil(log(value) / log(gamma))}, with {@code gamma = (1 + a) / (1 - a)} for a relative
+ * accuracy {@code a}, so that any quantile is known to within {@code a} times its value. Bins are
+ * plain counts in a primitive array, a few kilobytes for a metric, instead of the reservoir of
+ * samples a {@link com.codahale.metrics.Histogram} keeps, and two sketches of the same accuracy
+ * merge exactly, see {@link #merge(QuantileSketch)}, {@link #toByteArray()} and
+ * {@link #fromByteArray(byte[])}.
+ * <p/>
+ * At most {@code maxBins} bins are kept; past that the lowest ones are merged, which only costs
+ * accuracy on the lowest quantiles. Values too close to zero to be binned are counted apart, and
+ * like in {@link com.codahale.metrics.Timer}, negative values are ignored.
+ * <p/>
+ * It is a {@link Histogram} so that it can be registered, as metrics only takes the metric types
+ * it knows of. {@link DatadogReporter} reports the values recorded since the previous report,
+ * taken with {@link #drain()}, and the total count. A sketch should therefore be reported by a
+ * single {@link DatadogReporter}; other reporters see the values not yet drained through
+ * {@link #getSnapshot()}. Updates are synchronized.
+ */
+public class QuantileSketch extends Histogram {
+  public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+  public static final int DEFAULT_MAX_BINS = 2048;
+
+  private static final byte FORMAT_VERSION = 1;
+  private static final double MIN_INDEXABLE = 1e-9;
+  private static final int INITIAL_BINS = 64;
+  private static final int MIN_BINS = 16;
+  private static final int SNAPSHOT_SIZE = 1028;
+
+  private final double relativeAccuracy;
+  private final int maxBins;
+  private final double gamma;
+  private final double logGamma;
+  private long total;
+  private long[] counts;
+  private int offset;
+  private int lo = 0;
+  private int hi = -1;
+  private long zeroCount;
+  private long count;
+  private double sum;
+  private double sumOfSquares;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  public QuantileSketch() {
+    this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BINS);
+  }
+
+  /**
+   * @param relativeAccuracy the relative error of quantiles, between 0 and 1 exclusive
+   * @param maxBins the most bins kept, at least 16
+   */
+  public QuantileSketch(double relativeAccuracy, int maxBins) {
+    super(UNUSED);
+    if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+      throw new IllegalArgumentException("Relative accuracy must be in (0, 1): " + relativeAccuracy);
+    }
+    if (maxBins < MIN_BINS) {
+      throw new IllegalArgumentException("A sketch needs at least " + MIN_BINS + " bins: " + maxBins);
+    }
+    this.relativeAccuracy = relativeAccuracy;
+    this.maxBins = maxBins;
+    this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+    this.logGamma = Math.log(gamma);
+  }
+
+  @Override
+  public void update(long value) {
+    update((double) value);
+  }
+
+  /**
+   * Record a value.
+   */
+  public synchronized void update(double value) {
+    if (!(value >= 0) || Double.isInfinite(value)) {
+      return;
+    }
+    if (value < MIN_INDEXABLE) {
+      zeroCount++;
+    } else {
+      add((int) Math.ceil(Math.log(value) / logGamma), 1);
+    }
+    total++;
+    count++;
+    sum += value;
+    sumOfSquares += value * value;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+  }
+
+  /**
+   * The number of values recorded since the sketch was created, drained or not.
+   */
+  @Override
+  public synchronized long getCount() {
+    return total;
+  }
+
+  /**
+   * The number of values in the sketch.
+   */
+  public synchronized long size() {
+    return count;
+  }
+
+  public synchronized boolean isEmpty() {
+    return count == 0;
+  }
+
+  public double getRelativeAccuracy() {
+    return relativeAccuracy;
+  }
+
+  public synchronized double getMin() {
+    return count == 0 ? 0 : min;
+  }
+
+  public synchronized double getMax() {
+    return count == 0 ? 0 : max;
+  }
+
+  public synchronized double getMean() {
+    return count == 0 ? 0 : sum / count;
+  }
+
+  public synchronized double getStdDev() {
+    if (count == 0) {
+      return 0;
+    }
+    double mean = sum / count;
+    return Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean));
+  }
+
+  /**
+   * The value at the given quantile, between 0 and 1, to within the relative accuracy. The
+   * extremes are exact.
+   */
+  public synchronized double getQuantile(double quantile) {
+    if (count == 0) {
+      return 0;
+    }
+    if (quantile <= 0) {
+      return min;
+    } else if (quantile >= 1) {
+      return max;
+    }
+    double rank = quantile * (count - 1);
+    long seen = zeroCount;
+    if (seen > rank) {
+      return min;
+    }
+    int index = lo;
+    for (; index <= hi; index++) {
+      seen += counts[index - offset];
+      if (seen > rank) {
+        break;
+      }
+    }
+    return Math.max(min, Math.min(max, value(Math.min(index, hi))));
+  }
+
+  /**
+   * A snapshot of at most 1028 values, drawn from the bins in proportion to their counts, for
+   * reporters other than {@link DatadogReporter}. Values are truncated to integers.
+   */
+  @Override
+  public synchronized Snapshot getSnapshot() {
+    long[] binCounts = new long[bins()];
+    double[] values = values(binCounts);
+    double scale = Math.min(1.0, (double) SNAPSHOT_SIZE / Math.max(1, count));
+    long[] sample = new long[(int) Math.min(count, SNAPSHOT_SIZE)];
+    int size = 0;
+    double carried = 0;
+    for (int i = 0; i < values.length && size < sample.length; i++) {
+      carried += binCounts[i] * scale;
+      for (; carried >= 0.5 && size < sample.length; carried--) {
+        sample[size++] = (long) values[i];
+      }
+    }
+    long[] filled = new long[size];
+    System.arraycopy(sample, 0, filled, 0, size);
+    return new Snapshot(filled);
+  }
+
+  /**
+   * Take the values in the sketch, leaving it empty, and return them as a new sketch. The total
+   * count is left as it is.
+   */
+  public synchronized QuantileSketch drain() {
+    QuantileSketch drained = new QuantileSketch(relativeAccuracy, maxBins);
+    drained.counts = counts;
+    drained.offset = offset;
+    drained.lo = lo;
+    drained.hi = hi;
+    drained.zeroCount = zeroCount;
+    drained.count = count;
+    drained.total = count;
+    drained.sum = sum;
+    drained.sumOfSquares = sumOfSquares;
+    drained.min = min;
+    drained.max = max;
+
+    counts = null;
+    lo = 0;
+    hi = -1;
+    zeroCount = 0;
+    count = 0;
+    sum = 0;
+    sumOfSquares = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+    return drained;
+  }
+
+  /**
+   * Add the values of another sketch of the same relative accuracy to this one.
+   */
+  public void merge(QuantileSketch other) {
+    if (other == this) {
+      throw new IllegalArgumentException("A sketch can't be merged into itself");
+    }
+    // copy the other sketch first, so that the two are never locked at once
+    QuantileSketch copy = fromByteArray(other.toByteArray());
+    synchronized (this) {
+      if (copy.relativeAccuracy != relativeAccuracy) {
+        throw new IllegalArgumentException("Can't merge a sketch of relative accuracy "
+            + copy.relativeAccuracy + " into one of " + relativeAccuracy);
+      }
+      for (int index = copy.lo; index <= copy.hi; index++) {
+        add(index, copy.counts[index - copy.offset]);
+      }
+      zeroCount += copy.zeroCount;
+      count += copy.count;
+      total += copy.count;
+      sum += copy.sum;
+      sumOfSquares += copy.sumOfSquares;
+      min = Math.min(min, copy.min);
+      max = Math.max(max, copy.max);
+    }
+  }
+
+  /**
+   * The values in the sketch as the representative value of each non-empty bin, in ascending
+   * order, with the number of values of each in {@code binCounts}, which must be as long as the
+   * number of bins, see {@link #bins()}. Meant for a sketch no longer updated, e.g. drained.
+   */
+  synchronized double[] values(long[] binCounts) {
+    double[] values = new double[binCounts.length];
+    int i = 0;
+    if (zeroCount > 0) {
+      values[i] = 0;
+      binCounts[i++] = zeroCount;
+    }
+    for (int index = lo; index <= hi; index++) {
+      long binCount = counts[index - offset];
+      if (binCount > 0) {
+        values[i] = Math.max(min, Math.min(max, value(index)));
+        binCounts[i++] = binCount;
+      }
+    }
+    return values;
+  }
+
+  /**
+   * The number of non-empty bins, the values too close to zero counting as one.
+   */
+  synchronized int bins() {
+    int bins = (zeroCount > 0) ? 1 : 0;
+    for (int index = lo; index <= hi; index++) {
+      if (counts[index - offset] > 0) {
+        bins++;
+      }
+    }
+    return bins;
+  }
+
+  /**
+   * The sketch in a compact binary form, to be read back with {@link #fromByteArray(byte[])} and
+   * merged, e.g. in another process. The total count is not included.
+   */
+  public synchronized byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (hi - lo + 1) * 2);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(FORMAT_VERSION);
+      out.writeDouble(relativeAccuracy);
+      writeVarLong(out, maxBins);
+      writeVarLong(out, count);
+      writeVarLong(out, zeroCount);
+      out.writeDouble(sum);
+      out.writeDouble(sumOfSquares);
+      out.writeDouble(min);
+      out.writeDouble(max);
+      int bins = hi - lo + 1;
+      writeVarLong(out, bins);
+      if (bins > 0) {
+        // zig-zag, bins of values under 1 have negative indexes
+        writeVarLong(out, ((lo << 1) ^ (lo >> 31)) & 0xffffffffL);
+        for (int index = lo; index <= hi; index++) {
+          writeVarLong(out, counts[index - offset]);
+        }
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Read a sketch written by {@link #toByteArray()}.
+   *
+   * @throws IllegalArgumentException if the bytes are not a sketch
+   */
+  public static QuantileSketch fromByteArray(byte[] bytes) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      byte version = in.readByte();
+      if (version != FORMAT_VERSION) {
+        throw new IllegalArgumentException("Unknown sketch format version " + version);
+      }
+      QuantileSketch sketch = new QuantileSketch(in.readDouble(), (int) readVarLong(in));
+      long count = readVarLong(in);
+      sketch.zeroCount = readVarLong(in);
+      sketch.sum = in.readDouble();
+      sketch.sumOfSquares = in.readDouble();
+      sketch.min = in.readDouble();
+      sketch.max = in.readDouble();
+      int bins = (int) readVarLong(in);
+      if (bins > 0) {
+        int zigzag = (int) readVarLong(in);
+        int lo = (zigzag >>> 1) ^ -(zigzag & 1);
+        for (int i = 0; i < bins; i++) {
+          sketch.add(lo + i, readVarLong(in));
+        }
+      }
+      sketch.count = count;
+      sketch.total = count;
+      return sketch;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Truncated sketch", e);
+    }
+  }
+
+  private double value(int index) {
+    // the middle of the bin in relative terms, within the relative accuracy of all its values
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  /**
+   * Add {@code n} values to the bin at {@code index}, merging the lowest bins if needed to stay
+   * within {@code maxBins}.
+   */
+  private void add(int index, long n) {
+    if (n == 0) {
+      return;
+    }
+    if (hi < lo) {
+      ensure(index, index);
+      lo = index;
+      hi = index;
+    } else if (index < lo) {
+      index = Math.max(index, hi - maxBins + 1);
+      ensure(index, hi);
+      lo = Math.min(lo, index);
+    } else if (index > hi) {
+      int newLo = Math.max(lo, index - maxBins + 1);
+      long folded = 0;
+      for (int i = lo; i < newLo && i <= hi; i++) {
+        folded += counts[i - offset];
+        counts[i - offset] = 0;
+      }
+      ensure(newLo, index);
+      counts[newLo - offset] += folded;
+      lo = newLo;
+      hi = index;
+    }
+    counts[index - offset] += n;
+  }
+
+  /**
+   * Make room in the array for the bins from {@code from} to {@code to}, which span at most
+   * {@code maxBins}, keeping the counts in that range.
+   */
+  private void ensure(int from, int to) {
+    if (counts != null && from >= offset && to < offset + counts.length) {
+      return;
+    }
+    int span = to - from + 1;
+    int length = Math.min(maxBins, Math.max(INITIAL_BINS, span * 2));
+    int newOffset = from - (length - span) / 2;
+    long[] grown = new long[length];
+    if (counts != null) {
+      int start = Math.max(offset, newOffset);
+      int end = Math.min(offset + counts.length, newOffset + length);
+      if (start < end) {
+        System.arraycopy(counts, start - offset, grown, start - newOffset, end - start);
+      }
+    }
+    counts = grown;
+    offset = newOffset;
+  }
+
+  // the values go to the sketch, the reservoir of the histogram is never used
+  private static final Reservoir UNUSED = new Reservoir() {
+    public int size() {
+      return 0;
+    }
+
+    public void update(long value) {
+    }
+
+    public Snapshot getSnapshot() {
+      return new Snapshot(new long[0]);
+    }
+  };
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.readByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable length integer");
+  }
+}
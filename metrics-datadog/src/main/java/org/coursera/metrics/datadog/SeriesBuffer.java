@@ -0,0 +1,74 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.coursera.metrics.datadog.transport.Transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A request that keeps the series added to it, in order, until they are copied to the real
+ * request of a report. Lets several threads build the series of one report side by side.
+ * Distributions may only be added if the real request is a {@link Transport.DistributionRequest}.
+ */
+class SeriesBuffer implements Transport.DistributionRequest {
+  private final List<Object> series = new ArrayList<Object>();
+
+  public void addGauge(DatadogGauge gauge) {
+    series.add(gauge);
+  }
+
+  public void addCounter(DatadogCounter counter) {
+    series.add(counter);
+  }
+
+  public void addDistribution(SeriesName name, double[] values, double sampleRate) {
+    series.add(new Distribution(name, values, sampleRate, null));
+  }
+
+  public void addDistribution(SeriesName name, double[] values, long[] counts) {
+    series.add(new Distribution(name, values, 1.0, counts));
+  }
+
+  public void send() {
+    throw new UnsupportedOperationException("A series buffer is copied to a request, not sent");
+  }
+
+  /**
+   * Add the buffered series to the given request, in the order they were added here.
+   */
+  void copyTo(Transport.Request request) throws IOException {
+    for (Object s : series) {
+      if (s instanceof DatadogCounter) {
+        request.addCounter((DatadogCounter) s);
+      } else if (s instanceof DatadogGauge) {
+        request.addGauge((DatadogGauge) s);
+      } else {
+        Distribution d = (Distribution) s;
+        Transport.DistributionRequest distributions = (Transport.DistributionRequest) request;
+        if (d.counts == null) {
+          distributions.addDistribution(d.name, d.values, d.sampleRate);
+        } else {
+          distributions.addDistribution(d.name, d.values, d.counts);
+        }
+      }
+    }
+  }
+
+  private static final class Distribution {
+    final SeriesName name;
+    final double[] values;
+    final double sampleRate;
+    final long[] counts;
+
+    Distribution(SeriesName name, double[] values, double sampleRate, long[] counts) {
+      this.name = name;
+      this.values = values;
+      this.sampleRate = sampleRate;
+      this.counts = counts;
+    }
+  }
+}
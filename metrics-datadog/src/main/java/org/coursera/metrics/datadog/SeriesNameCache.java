@@ -0,0 +1,152 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.MetricRegistryListener;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+import org.coursera.metrics.datadog.model.SeriesName;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The series names of each registry key, resolved once rather than on every report: the
+ * prefixed name, the expansions picked by the policy, the name formatted for each expansion,
+ * the tags embedded in it and the reporter's tags appended to those.
+ * <p/>
+ * An entry is dropped when its metric is removed from the registry, which the cache listens to.
+ * Names are filled in lazily, and concurrent reports may resolve the same name twice, which is
+ * harmless as the results are equal and immutable.
+ */
+class SeriesNameCache extends MetricRegistryListener.Base {
+  private static final int UNEXPANDED = Expansion.values().length;
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final String prefix;
+  private final MetricNameFormatter formatter;
+  private final ExpansionPolicy policy;
+
+  SeriesNameCache(String prefix, MetricNameFormatter formatter, ExpansionPolicy policy) {
+    this.prefix = prefix;
+    this.formatter = formatter;
+    this.policy = policy;
+  }
+
+  /**
+   * The expansions to send for the metric at {@code key}.
+   */
+  EnumSet<Expansion> expansions(String key) {
+    Entry entry = entry(key);
+    EnumSet<Expansion> expansions = entry.expansions;
+    if (expansions == null) {
+      expansions = policy.getExpansions(key);
+      entry.expansions = expansions;
+    }
+    return expansions;
+  }
+
+  /**
+   * The series name of the metric at {@code key}, with the given tags appended.
+   */
+  SeriesName get(String key, List<String> tags) {
+    return get(key, null, tags);
+  }
+
+  /**
+   * The series name of the given expansion of the metric at {@code key}, with the given tags
+   * appended. A null expansion is the metric itself.
+   */
+  SeriesName get(String key, Expansion expansion, List<String> tags) {
+    Entry entry = entry(key);
+    Tagged tagged = entry.tagged;
+    if (tagged == null || !tagged.tags.equals(tags)) {
+      tagged = new Tagged(tags);
+      entry.tagged = tagged;
+    }
+
+    int slot = (expansion == null) ? UNEXPANDED : expansion.ordinal();
+    SeriesName name = tagged.names[slot];
+    if (name == null) {
+      SeriesName parsed = entry.parsed[slot];
+      if (parsed == null) {
+        String formatted = (expansion == null)
+            ? entry.name : formatter.format(entry.name, expansion.toString());
+        parsed = SeriesName.parse(formatted);
+        entry.parsed[slot] = parsed;
+      }
+      name = parsed.withTags(tags);
+      tagged.names[slot] = name;
+    }
+    return name;
+  }
+
+  private Entry entry(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(prefix == null ? key : prefix + "." + key);
+      Entry existing = entries.putIfAbsent(key, entry);
+      if (existing != null) {
+        entry = existing;
+      }
+    }
+    return entry;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  void remove(String key) {
+    entries.remove(key);
+  }
+
+  @Override
+  public void onGaugeRemoved(String name) {
+    remove(name);
+  }
+
+  @Override
+  public void onCounterRemoved(String name) {
+    remove(name);
+  }
+
+  @Override
+  public void onHistogramRemoved(String name) {
+    remove(name);
+  }
+
+  @Override
+  public void onMeterRemoved(String name) {
+    remove(name);
+  }
+
+  @Override
+  public void onTimerRemoved(String name) {
+    remove(name);
+  }
+
+  private static final class Entry {
+    final String name;
+    final SeriesName[] parsed = new SeriesName[UNEXPANDED + 1];
+    volatile Tagged tagged;
+    volatile EnumSet<Expansion> expansions;
+
+    Entry(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * The names of an entry with a given set of tags appended, replaced when the tags change,
+   * e.g. because a dynamic tags callback returned different ones.
+   */
+  private static final class Tagged {
+    final List<String> tags;
+    final SeriesName[] names = new SeriesName[UNEXPANDED + 1];
+
+    Tagged(List<String> tags) {
+      this.tags = new ArrayList<String>(tags);
+    }
+  }
+}
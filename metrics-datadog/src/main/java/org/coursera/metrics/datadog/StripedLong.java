@@ -0,0 +1,44 @@
+package org.coursera.metrics.datadog;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum spread over one cell per stripe, each on its own cache line, so that threads adding to
+ * it at the same time rarely touch the same cell. Threads pick their stripe by id. Adding is a
+ * single atomic add; reading sums the cells, and sees every add that completed before.
+ * <p/>
+ * A stand-in for {@code LongAdder}, which needs Java 8.
+ */
+final class StripedLong {
+  // longs per 64 byte cache line
+  private static final int PADDING = 8;
+  private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+  private final AtomicLongArray cells = new AtomicLongArray((STRIPES + 1) * PADDING);
+
+  void add(long x) {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+    // the first line is left empty, it is shared with the header of the array
+    cells.addAndGet(((h ^ (h >>> 16)) & (STRIPES - 1)) * PADDING + PADDING, x);
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int i = 1; i <= STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  /**
+   * The smallest power of two at least the number of processors, up to 64.
+   */
+  static int stripes(int processors) {
+    int stripes = 1;
+    while (stripes < processors && stripes < 64) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+}
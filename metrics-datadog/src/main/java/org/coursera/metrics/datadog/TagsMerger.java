@@ -4,9 +4,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 class TagsMerger {
   private static final Logger LOG = LoggerFactory.getLogger(TagsMerger.class);
@@ -15,8 +15,9 @@ class TagsMerger {
    *
    * @param tags1 list of tags, each tag should be in the format of "key:value"
    * @param tags2 list of tags, each tag should be in the format of "key:value"
-   * @return merged tags list. If there is duplicated key, tags in tags2 will overwrite tags
-   * in tags1, and tags in the back of the list will overwrite tags in the front of the list.
+   * @return merged tags list, sorted by key. If there is duplicated key, tags in tags2 will
+   * overwrite tags in tags1, and tags in the back of the list will overwrite tags in the front
+   * of the list. If either list is empty, the other one is returned as is.
    */
   static List<String> mergeTags(List<String> tags1, List<String> tags2) {
     if (tags1 == null || tags1.isEmpty()) {
@@ -25,25 +26,29 @@ class TagsMerger {
       return tags1;
     }
 
-    List<String> newTags = new ArrayList<String>();
-    newTags.addAll(tags1);
-    newTags.addAll(tags2);
+    Map<String, String> map = new TreeMap<String, String>();
+    put(map, tags1);
+    put(map, tags2);
+    return new ArrayList<String>(map.values());
+  }
 
-    Map<String, String> map = new HashMap<String, String>();
-    for (String tag : newTags) {
-      String[] strs = tag.split(":");
-      if (strs.length != 2) {
+  /**
+   * Map the key of each valid tag to the tag. Trailing ':' are dropped, then a valid tag has a
+   * single ':' that is not its last character.
+   */
+  private static void put(Map<String, String> map, List<String> tags) {
+    for (String tag : tags) {
+      int end = tag.length();
+      while (end > 0 && tag.charAt(end - 1) == ':') {
+        end--;
+      }
+      int colon = tag.indexOf(':');
+      int second = (colon < 0) ? -1 : tag.indexOf(':', colon + 1);
+      if (colon < 0 || colon >= end - 1 || (second >= 0 && second < end)) {
         LOG.warn("Invalid tag: " + tag);
       } else {
-        map.put(strs[0], strs[1]);
+        map.put(tag.substring(0, colon), (end == tag.length()) ? tag : tag.substring(0, end));
       }
     }
-
-    newTags.clear();
-    for (Map.Entry entry : map.entrySet()) {
-      newTags.add(entry.getKey() + ":" + entry.getValue());
-    }
-
-    return newTags;
   }
 }
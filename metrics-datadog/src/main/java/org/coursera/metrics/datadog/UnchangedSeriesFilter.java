@@ -0,0 +1,85 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.model.SeriesName;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the last value sent for each series, so that a report can skip the series whose
+ * value did not change. A skipped series is still sent every {@code heartbeat} reports, so that
+ * it never looks stale in datadog.
+ * <p/>
+ * The values offered during a report are only staged, and become the last values sent once the
+ * report is committed, after its request was sent. A report whose request failed is aborted, so
+ * the next one compares with the values that did reach datadog and sends the series again.
+ * Series that were not offered during a committed report, because their metric was removed or
+ * their tags changed, are forgotten. Several threads may offer series during a report, as long
+ * as each series is offered by a single one, and the report is ended once they are done.
+ */
+class UnchangedSeriesFilter {
+  private final int heartbeat;
+  private final Map<SeriesName, Entry> entries = new ConcurrentHashMap<SeriesName, Entry>();
+  private int report;
+
+  UnchangedSeriesFilter(int heartbeat) {
+    this.heartbeat = heartbeat;
+  }
+
+  /**
+   * Whether the series should be sent with this value in the current report.
+   */
+  boolean accept(SeriesName name, Number value) {
+    Entry entry = entries.get(name);
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(name, entry);
+    }
+    entry.seen = report;
+    entry.staged = value;
+    if (value.equals(entry.value) && entry.skipped + 1 < heartbeat) {
+      entry.stagedSkipped = entry.skipped + 1;
+      return false;
+    }
+    entry.stagedSkipped = 0;
+    return true;
+  }
+
+  /**
+   * Keep the values staged since the last call as sent, and forget the series that were not
+   * offered.
+   */
+  void commitReport() {
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if (entry.seen != report) {
+        it.remove();
+      } else {
+        entry.value = entry.staged;
+        entry.skipped = entry.stagedSkipped;
+      }
+    }
+    report++;
+  }
+
+  /**
+   * Drop the values staged since the last call, as they were not sent.
+   */
+  void abortReport() {
+    report++;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private static final class Entry {
+    // the last value sent, null until one was
+    Number value;
+    int skipped;
+    Number staged;
+    int stagedSkipped;
+    int seen = -1;
+  }
+}
@@ -1,14 +1,71 @@
 package org.coursera.metrics.datadog.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.util.List;
 
 public class DatadogCounter extends DatadogSeries<Long> {
-  
+  private final boolean delta;
+  private final Long interval;
+
   public DatadogCounter(String name, Long count, Long epoch, String host, List<String> additionalTags) {
     super(name, count, epoch, host, additionalTags);
+    this.delta = false;
+    this.interval = null;
+  }
+
+  public DatadogCounter(SeriesName name, Long count, Long epoch, String host) {
+    this(name, count, epoch, host, false);
+  }
+
+  /**
+   * @param delta whether the count is the count since the previous report rather than since the
+   * counter was created
+   */
+  public DatadogCounter(SeriesName name, Long count, Long epoch, String host, boolean delta) {
+    this(name, count, epoch, host, delta, null);
+  }
+
+  /**
+   * @param interval the number of seconds a count since the previous report covers, sent along
+   * with it so that datadog can turn it into a rate, or null if unknown
+   */
+  public DatadogCounter(SeriesName name, Long count, Long epoch, String host, boolean delta,
+      Long interval) {
+    super(name, count, epoch, host);
+    this.delta = delta;
+    this.interval = interval;
+  }
+
+  /**
+   * Whether the count is the count since the previous report, which transports send as is,
+   * rather than since the counter was created.
+   */
+  @JsonIgnore
+  public boolean isDelta() {
+    return delta;
+  }
+
+  @Override
+  public Long getInterval() {
+    return interval;
   }
 
   public String getType() {
-    return "counter";
+    return delta ? "count" : "counter";
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!super.equals(o) || !(o instanceof DatadogCounter)) return false;
+
+    DatadogCounter that = (DatadogCounter) o;
+    return delta == that.delta
+        && (interval == null ? that.interval == null : interval.equals(that.interval));
+  }
+
+  @Override
+  public int hashCode() {
+    return super.hashCode();
   }
 }
\ No newline at end of file
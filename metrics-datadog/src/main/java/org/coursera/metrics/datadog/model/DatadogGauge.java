@@ -8,6 +8,10 @@ public class DatadogGauge extends DatadogSeries<Number> {
     super(name, count, epoch, host, additionalTags);
   }
 
+  public DatadogGauge(SeriesName name, Number count, Long epoch, String host) {
+    super(name, count, epoch, host);
+  }
+
   public String getType() {
     return "gauge";
   }
@@ -0,0 +1,38 @@
+package org.coursera.metrics.datadog.model;
+
+/**
+ * A number of events per second over the interval of a report. Unlike a gauge, datadog knows
+ * the interval of a rate, and sums the events it stands for when it rolls the series up.
+ * Only the http api takes rate series; dogstatsd sends this as a gauge.
+ */
+public class DatadogRate extends DatadogGauge {
+  private final Long interval;
+
+  public DatadogRate(SeriesName name, Double rate, Long epoch, String host, Long interval) {
+    super(name, rate, epoch, host);
+    this.interval = interval;
+  }
+
+  @Override
+  public Long getInterval() {
+    return interval;
+  }
+
+  @Override
+  public String getType() {
+    return "rate";
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!super.equals(o) || !(o instanceof DatadogRate)) return false;
+
+    DatadogRate that = (DatadogRate) o;
+    return interval == null ? that.interval == null : interval.equals(that.interval);
+  }
+
+  @Override
+  public int hashCode() {
+    return super.hashCode();
+  }
+}
@@ -2,41 +2,28 @@ package org.coursera.metrics.datadog.model;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 
 public abstract class DatadogSeries<T extends Number> {
   abstract protected String getType();
 
-  private String name;
+  private final SeriesName name;
   private T count;
   private Long epoch;
   private String host;
-  private List<String> tags;
-
-  // Expect the tags in the pattern
-  // namespace.metricName[tag1:value1,tag2:value2,etc....]
-  private final Pattern tagPattern = Pattern
-      .compile("([\\w\\.]+)\\[([\\w\\W]+)\\]");
 
   public DatadogSeries(String name, T count, Long epoch, String host, List<String> additionalTags) {
-    Matcher matcher = tagPattern.matcher(name);
-    this.tags = new ArrayList<String>();
-
-    if (matcher.find() && matcher.groupCount() == 2) {
-      this.name = matcher.group(1);
-      for(String t : matcher.group(2).split("\\,")) {
-        this.tags.add(t);
-      }
-    } else {
-      this.name = name;
-    }
-    if(additionalTags != null) {
-      this.tags.addAll(additionalTags);
-    }
+    this(SeriesName.parse(name).withTags(additionalTags), count, epoch, host);
+  }
+
+  /**
+   * A series for an already parsed name, which may be shared by the series of several reports.
+   */
+  public DatadogSeries(SeriesName name, T count, Long epoch, String host) {
+    this.name = name;
     this.count = count;
     this.epoch = epoch;
     this.host = host;
@@ -48,11 +35,44 @@ public abstract class DatadogSeries<T extends Number> {
   }
 
   public String getMetric() {
-    return name;
+    return name.getMetric();
   }
 
   public List<String> getTags() {
-    return tags;
+    return name.getTags();
+  }
+
+  /**
+   * The metric name and tags of this series as one immutable key.
+   */
+  @JsonIgnore
+  public SeriesName getSeriesName() {
+    return name;
+  }
+
+  /**
+   * The value of the single point of this series, for serializers that write the point
+   * directly rather than going through {@link #getPoints()}.
+   */
+  @JsonIgnore
+  public T getValue() {
+    return count;
+  }
+
+  /**
+   * The timestamp of the single point of this series, in seconds since the epoch.
+   */
+  @JsonIgnore
+  public Long getEpoch() {
+    return epoch;
+  }
+
+  /**
+   * The number of seconds the point covers, for count and rate series, or null for the others.
+   */
+  @JsonInclude(Include.NON_NULL)
+  public Long getInterval() {
+    return null;
   }
 
   public List<List<Number>> getPoints() {
@@ -76,7 +96,6 @@ public abstract class DatadogSeries<T extends Number> {
     if (!epoch.equals(that.epoch)) return false;
     if (!host.equals(that.host)) return false;
     if (!name.equals(that.name)) return false;
-    if (!tags.equals(that.tags)) return false;
 
     return true;
   }
@@ -87,18 +106,17 @@ public abstract class DatadogSeries<T extends Number> {
     result = 31 * result + count.hashCode();
     result = 31 * result + epoch.hashCode();
     result = 31 * result + host.hashCode();
-    result = 31 * result + tags.hashCode();
     return result;
   }
 
   @Override
   public String toString() {
     return "DatadogSeries{" +
-        "name='" + name + '\'' +
+        "name='" + name.getMetric() + '\'' +
         ", count=" + count +
         ", epoch=" + epoch +
         ", host='" + host + '\'' +
-        ", tags=" + tags +
+        ", tags=" + name.getTags() +
         '}';
   }
 }
@@ -0,0 +1,114 @@
+package org.coursera.metrics.datadog.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The identity of a series: its metric name and tags. Instances are immutable and compute
+ * their hash once, so they can be cached and reused as keys from one report to the next.
+ */
+public final class SeriesName {
+
+  private final String metric;
+  private final List<String> tags;
+  private final int hash;
+
+  private SeriesName(String metric, List<String> tags) {
+    this.metric = metric;
+    this.tags = tags;
+    this.hash = 31 * metric.hashCode() + tags.hashCode();
+  }
+
+  /**
+   * Split a name of the form {@code metricName[tag1:value1,tag2:value2]} into its metric name
+   * and tags. A name without embedded tags is the metric name.
+   * <p/>
+   * This is a single pass equivalent of finding {@code ([\w\.]+)\[([\w\W]+)\]} in the name
+   * and splitting the second group on commas: the metric is the run of word characters and dots
+   * before the first '[' that follows one, the tags are what lies between that '[' and the last
+   * ']', provided there is at least one character in between. Anything around them is dropped,
+   * as are empty trailing tags.
+   */
+  public static SeriesName parse(String name) {
+    int open = -1;
+    for (int i = 1; i < name.length(); i++) {
+      if (name.charAt(i) == '[' && isMetricChar(name.charAt(i - 1))) {
+        open = i;
+        break;
+      }
+    }
+    int close = (open < 0) ? -1 : name.lastIndexOf(']');
+    if (close < open + 2) {
+      return new SeriesName(name, Collections.<String>emptyList());
+    }
+
+    int start = open - 1;
+    while (start > 0 && isMetricChar(name.charAt(start - 1))) {
+      start--;
+    }
+
+    List<String> tags = new ArrayList<String>(4);
+    int tagStart = open + 1;
+    int lastNonEmpty = 0;
+    for (int i = tagStart; i <= close; i++) {
+      if (i == close || name.charAt(i) == ',') {
+        tags.add(name.substring(tagStart, i));
+        if (i > tagStart) {
+          lastNonEmpty = tags.size();
+        }
+        tagStart = i + 1;
+      }
+    }
+    tags.subList(lastNonEmpty, tags.size()).clear();
+    return new SeriesName(name.substring(start, open), Collections.unmodifiableList(tags));
+  }
+
+  private static boolean isMetricChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+        || c == '_' || c == '.';
+  }
+
+  /**
+   * This name with the given tags appended to its own.
+   */
+  public SeriesName withTags(List<String> additionalTags) {
+    if (additionalTags == null || additionalTags.isEmpty()) {
+      return this;
+    }
+    List<String> all = new ArrayList<String>(tags.size() + additionalTags.size());
+    all.addAll(tags);
+    all.addAll(additionalTags);
+    return new SeriesName(metric, Collections.unmodifiableList(all));
+  }
+
+  public String getMetric() {
+    return metric;
+  }
+
+  public List<String> getTags() {
+    return tags;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof SeriesName)) return false;
+
+    SeriesName that = (SeriesName) o;
+    return hash == that.hash && metric.equals(that.metric) && tags.equals(that.tags);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return "SeriesName{" +
+        "metric='" + metric + '\'' +
+        ", tags=" + tags +
+        '}';
+  }
+}
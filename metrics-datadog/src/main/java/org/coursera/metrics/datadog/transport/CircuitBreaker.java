@@ -0,0 +1,73 @@
+package org.coursera.metrics.datadog.transport;
+
+/**
+ * Stops posting to an endpoint that keeps failing. After {@code failureThreshold} consecutive
+ * failures the circuit opens and requests are refused for {@code openMillis}. Then a single
+ * trial request is let through: its success closes the circuit, its failure opens it again.
+ * A threshold of 0 disables the breaker.
+ */
+class CircuitBreaker {
+
+  static enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedAt;
+  private long opened;
+
+  CircuitBreaker(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openMillis * 1000000L;
+  }
+
+  /**
+   * Whether a request may be posted now. Moves an open circuit to half open once the open
+   * period is over, and lets only that one trial request through until it completes.
+   */
+  synchronized boolean allowRequest() {
+    switch (state) {
+      case OPEN:
+        if (System.nanoTime() - openedAt < openNanos) {
+          return false;
+        }
+        state = State.HALF_OPEN;
+        return true;
+      case HALF_OPEN:
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  synchronized void onSuccess() {
+    failures = 0;
+    state = State.CLOSED;
+  }
+
+  synchronized void onFailure() {
+    if (failureThreshold <= 0) {
+      return;
+    }
+    failures++;
+    if (state == State.HALF_OPEN || failures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = System.nanoTime();
+      opened++;
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * The number of times the circuit opened.
+   */
+  synchronized long getOpened() {
+    return opened;
+  }
+}
@@ -0,0 +1,165 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last count pushed for each counter series, used to turn the absolute counts of the
+ * reporter into increments, as statsd and the count and rate series of datadog expect.
+ * <p/>
+ * The table is safe for overlapping reports and bounded. Each report starts a new flush with
+ * {@link #startFlush()}, which evicts series that have not been seen for more than
+ * {@code maxMissedFlushes} flushes and, if the table still holds more than {@code maxSize}
+ * series, the least recently seen ones. The table can therefore only outgrow {@code maxSize} by
+ * the new series of a single report. A series that comes back after missing too many flushes is
+ * treated as new, so its first increment is its full count again. A series evicted for room is
+ * still live, so only its name is kept, until it would have been evicted as stale, and its count
+ * on return becomes its new baseline, with an increment of 0. An undersized table therefore loses
+ * the increments of the series it evicts rather than sending their full count on every flush;
+ * it should hold all the counter series reported within {@code maxMissedFlushes} flushes, and
+ * evictions for room are logged.
+ */
+public class CounterDeltaTable implements MetricSet {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CounterDeltaTable.class);
+
+  private final ConcurrentMap<SeriesName, Entry> entries =
+      new ConcurrentHashMap<SeriesName, Entry>();
+  // series evicted for room, with the flush they were last seen at
+  private final ConcurrentMap<SeriesName, Long> evicted = new ConcurrentHashMap<SeriesName, Long>();
+  private final AtomicLong flush = new AtomicLong();
+  private final Meter evictions = new Meter();
+  private final int maxMissedFlushes;
+  private final int maxSize;
+
+  public CounterDeltaTable(int maxMissedFlushes, int maxSize) {
+    if (maxMissedFlushes < 1) {
+      throw new IllegalArgumentException("maxMissedFlushes must be positive: " + maxMissedFlushes);
+    }
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    this.maxMissedFlushes = maxMissedFlushes;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Start a new flush and evict stale series.
+   */
+  public void startFlush() {
+    long current = flush.incrementAndGet();
+    long oldest = current - maxMissedFlushes;
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().lastSeen < oldest) {
+        it.remove();
+        evictions.mark();
+      }
+    }
+    Iterator<Long> tombstones = evicted.values().iterator();
+    while (tombstones.hasNext()) {
+      if (tombstones.next() < oldest) {
+        tombstones.remove();
+      }
+    }
+    if (entries.size() > maxSize) {
+      int count = evictLeastRecentlySeen(entries.size() - maxSize);
+      LOG.warn("Evicted " + count + " live counter series over the limit of " + maxSize +
+          ", their increments are lost until the limit holds all of them");
+    }
+  }
+
+  /**
+   * The increment of the given series since its count was last recorded, or the count itself
+   * for a series that is not in the table, unless it was evicted for room. A count below the
+   * last one, e.g. after a restart, gives an increment of 0.
+   */
+  public long delta(SeriesName key, long count) {
+    long current = flush.get();
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(count, current);
+      Entry existing = entries.putIfAbsent(key, entry);
+      if (existing == null) {
+        return (evicted.remove(key) == null) ? count : 0;
+      }
+      entry = existing;
+    }
+    entry.lastSeen = current;
+    return Math.max(0, count - entry.count.getAndSet(count));
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * The number of flushes a series may miss before it is evicted.
+   */
+  public int getMaxMissedFlushes() {
+    return maxMissedFlushes;
+  }
+
+  public long getEvictions() {
+    return evictions.getCount();
+  }
+
+  public Map<String, Metric> getMetrics() {
+    Map<String, Metric> metrics = new HashMap<String, Metric>();
+    metrics.put("counters.tracked", new Gauge<Integer>() {
+      public Integer getValue() {
+        return entries.size();
+      }
+    });
+    metrics.put("counters.evicted", evictions);
+    return Collections.unmodifiableMap(metrics);
+  }
+
+  private int evictLeastRecentlySeen(int count) {
+    List<Map.Entry<SeriesName, Entry>> candidates =
+        new ArrayList<Map.Entry<SeriesName, Entry>>(entries.entrySet());
+    Collections.sort(candidates, new Comparator<Map.Entry<SeriesName, Entry>>() {
+      public int compare(Map.Entry<SeriesName, Entry> a, Map.Entry<SeriesName, Entry> b) {
+        long x = a.getValue().lastSeen;
+        long y = b.getValue().lastSeen;
+        return x < y ? -1 : (x == y ? 0 : 1);
+      }
+    });
+    int removed = 0;
+    for (int i = 0; i < count && i < candidates.size(); i++) {
+      Map.Entry<SeriesName, Entry> candidate = candidates.get(i);
+      if (entries.remove(candidate.getKey(), candidate.getValue())) {
+        evicted.put(candidate.getKey(), candidate.getValue().lastSeen);
+        evictions.mark();
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  private static final class Entry {
+    final AtomicLong count;
+    volatile long lastSeen;
+
+    Entry(long count, long lastSeen) {
+      this.count = new AtomicLong(count);
+      this.lastSeen = lastSeen;
+    }
+  }
+}
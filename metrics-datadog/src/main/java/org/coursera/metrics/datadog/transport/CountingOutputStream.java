@@ -0,0 +1,32 @@
+package org.coursera.metrics.datadog.transport;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it, which is the size of the payload before compression.
+ */
+class CountingOutputStream extends FilterOutputStream {
+  private long count;
+
+  CountingOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  long getCount() {
+    return count;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    count += len;
+  }
+}
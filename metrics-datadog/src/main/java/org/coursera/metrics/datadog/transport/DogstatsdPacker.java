@@ -0,0 +1,220 @@
+package org.coursera.metrics.datadog.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.List;
+
+/**
+ * Formats metrics in the dogstatsd wire format and packs the newline separated lines into
+ * packets of at most {@code maxPacketSize} bytes, handing each full packet to
+ * {@link #write(ByteBuffer)}. A line longer than a packet is written on its own.
+ * <p/>
+ * A packer is used by a single request at a time and is not thread safe.
+ *
+ * @see <a href="http://docs.datadoghq.com/guides/dogstatsd/#datagram-format">datagram format</a>
+ */
+abstract class DogstatsdPacker {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final String prefix;
+  private final ByteBuffer packet;
+  private final StringBuilder line = new StringBuilder(128);
+  private final StringBuilder suffix = new StringBuilder(128);
+  private final CharsetEncoder encoder = UTF_8.newEncoder();
+  private ByteBuffer encoded;
+  private long packets;
+  private long bytes;
+
+  /**
+   * @param prefix prepended to every metric name with a dot, may be null
+   */
+  DogstatsdPacker(String prefix, int maxPacketSize) {
+    this.prefix = (prefix == null || prefix.length() == 0) ? "" : prefix + ".";
+    this.packet = ByteBuffer.allocate(maxPacketSize);
+    this.encoded = ByteBuffer.allocate(Math.min(maxPacketSize, 512));
+  }
+
+  void gauge(String metric, Number value, List<String> tags) throws IOException {
+    if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte) {
+      startLine(metric).append(value.longValue());
+    } else {
+      double d = value.doubleValue();
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        return;
+      }
+      startLine(metric).append(d);
+    }
+    endLine("g", tags);
+  }
+
+  void count(String metric, long value, List<String> tags) throws IOException {
+    startLine(metric).append(value);
+    endLine("c", tags);
+  }
+
+  /**
+   * The values of a distribution, {@code type} "d", or of a histogram, "h", each standing for
+   * {@code 1 / sampleRate} values. With {@code multiValue} as many values as fit a packet share
+   * a line, which takes an agent that speaks dogstatsd 1.1 (6.25, 7.25 or later); otherwise
+   * each value has its own line.
+   */
+  void values(String metric, String type, double[] values, double sampleRate, List<String> tags,
+      boolean multiValue) throws IOException {
+    suffix.setLength(0);
+    appendSuffix(suffix, type, sampleRate, tags);
+    int maxLine = packet.capacity() - suffix.length();
+    boolean empty = true;
+    startLine(metric);
+    for (double value : values) {
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        continue;
+      }
+      int mark = line.length();
+      if (!empty) {
+        line.append(':');
+      }
+      appendValue(value);
+      if (!empty && (!multiValue || line.length() > maxLine)) {
+        line.setLength(mark);
+        line.append(suffix);
+        writeLine();
+        startLine(metric);
+        appendValue(value);
+      }
+      empty = false;
+    }
+    if (!empty) {
+      line.append(suffix);
+      writeLine();
+    }
+  }
+
+  /**
+   * Values each standing for the number of values at the same index in {@code counts}, sent as
+   * one line per value with a sample rate of one over its count.
+   */
+  void weightedValues(String metric, String type, double[] values, long[] counts,
+      List<String> tags) throws IOException {
+    for (int i = 0; i < values.length; i++) {
+      if (Double.isNaN(values[i]) || Double.isInfinite(values[i]) || counts[i] <= 0) {
+        continue;
+      }
+      startLine(metric);
+      appendValue(values[i]);
+      appendSuffix(line, type, 1.0 / counts[i], tags);
+      writeLine();
+    }
+  }
+
+  /**
+   * Write the packet being filled, if any.
+   */
+  void flush() throws IOException {
+    if (packet.position() > 0) {
+      packet.flip();
+      packets++;
+      bytes += packet.remaining();
+      write(packet);
+      packet.clear();
+    }
+  }
+
+  /**
+   * Packets written so far.
+   */
+  long getPackets() {
+    return packets;
+  }
+
+  /**
+   * Bytes written so far.
+   */
+  long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Send one packet, consuming the remaining bytes of the buffer.
+   */
+  protected abstract void write(ByteBuffer packet) throws IOException;
+
+  private StringBuilder startLine(String metric) {
+    line.setLength(0);
+    return line.append(prefix).append(metric).append(':');
+  }
+
+  private void appendValue(double value) {
+    // recorded values of a histogram are integers, and are sent as such
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      line.append((long) value);
+    } else {
+      line.append(value);
+    }
+  }
+
+  private void endLine(String type, List<String> tags) throws IOException {
+    appendSuffix(line, type, 1.0, tags);
+    writeLine();
+  }
+
+  private static void appendSuffix(StringBuilder out, String type, double sampleRate,
+      List<String> tags) {
+    out.append('|').append(type);
+    if (sampleRate < 1.0) {
+      out.append("|@").append(sampleRate);
+    }
+    if (tags != null && !tags.isEmpty()) {
+      out.append("|#");
+      for (int i = 0; i < tags.size(); i++) {
+        if (i > 0) {
+          out.append(',');
+        }
+        out.append(tags.get(i));
+      }
+    }
+  }
+
+  private void writeLine() throws IOException {
+    encodeLine();
+
+    int separator = (packet.position() > 0) ? 1 : 0;
+    if (packet.position() + separator + encoded.remaining() > packet.capacity()) {
+      flush();
+      separator = 0;
+    }
+    if (encoded.remaining() > packet.capacity()) {
+      packets++;
+      bytes += encoded.remaining();
+      write(encoded);
+      return;
+    }
+    if (separator > 0) {
+      packet.put((byte) '\n');
+    }
+    packet.put(encoded);
+  }
+
+  private void encodeLine() {
+    encoder.reset();
+    encoded.clear();
+    CharBuffer chars = CharBuffer.wrap(line);
+    while (true) {
+      CoderResult result = encoder.encode(chars, encoded, true);
+      if (result.isOverflow()) {
+        ByteBuffer larger = ByteBuffer.allocate(encoded.capacity() * 2);
+        encoded.flip();
+        larger.put(encoded);
+        encoded = larger;
+      } else {
+        break;
+      }
+    }
+    encoder.flush(encoded);
+    encoded.flip();
+  }
+}
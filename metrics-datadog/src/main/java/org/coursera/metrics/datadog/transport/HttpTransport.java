@@ -1,45 +1,319 @@
 package org.coursera.metrics.datadog.transport;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Gauge;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.fluent.Response;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.serializer.DirectJsonSerializer;
 import org.coursera.metrics.serializer.JsonSerializer;
-import org.coursera.metrics.serializer.Serializer;
 import org.apache.http.entity.ContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.apache.http.client.fluent.Request.*;
 
 /**
- * Uses the datadog http webservice to push metrics.
+ * Uses the datadog http webservice to push metrics. The transport owns a pooled http client
+ * that keeps connections to the intake alive between reports; {@link #close()} releases it.
+ * <p/>
+ * A report can be split into several batches bounded by series count and/or encoded size,
+ * which are then posted concurrently over a bounded pool. Reports can also be handed to a
+ * bounded queue and sent from a dedicated I/O thread, so that a slow intake never delays the
+ * next report. Batch outcomes are exposed as metrics through {@link #getMetrics()}.
+ * <p/>
+ * Batches that fail for a reason worth retrying can be kept in a size capped spool on local
+ * disk, and replayed from a background thread at a bounded rate once the intake is back. The
+ * spooled payloads are the posted bytes, so the series keep their original timestamps.
+ * <p/>
+ * A failed post can be retried after a jittered exponential backoff, within a time budget
+ * that should be kept below the reporting period. A circuit breaker stops posting to an intake
+ * that keeps failing, so that every reporter does not hammer it in lockstep while it recovers.
+ * <p/>
+ * Counters are sent as their count since they were created by default. With
+ * {@link Builder#withCounterType(CounterType)} they are sent as the count since the previous
+ * report instead, as datadog count or rate series along with the interval since that report,
+ * which lets datadog compute rates server side. The last count sent for each counter series is
+ * then kept in a {@link CounterDeltaTable}, as for dogstatsd.
  *
  * @see <a href="http://docs.datadoghq.com/api/">API docs</a>
  */
-public class HttpTransport implements Transport {
+public class HttpTransport implements Transport, Transport.CounterTracking, MetricSet {
 
   private static final Logger LOG = LoggerFactory.getLogger(HttpTransport.class);
 
   private final static String BASE_URL = "https://app.datadoghq.com/api/v1";
+  private final static int COMPRESSION_BUFFER_SIZE = 8192;
   private final String seriesUrl;
   private final int connectTimeout;     // in milliseconds
   private final int socketTimeout;      // in milliseconds
+  private final Compression compression;
+  private final int compressionLevel;
+  private final int maxSeriesPerBatch;
+  private final int maxBytesPerBatch;
+  private final ExecutorService batchExecutor;
+  private final Queue<PayloadBuffer> buffers = new ConcurrentLinkedQueue<PayloadBuffer>();
+  private final Counter batchesSucceeded = new Counter();
+  private final Counter batchesFailed = new Counter();
+  private final Counter bytesEncoded = new Counter();
+  private final Counter bytesSent = new Counter();
+  private final Counter[] responses = new Counter[6];
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient httpClient;
+  private final Executor executor;
+  private final SendQueue sendQueue;
+  private final Spool spool;
+  private final ScheduledExecutorService replayExecutor;
+  private final Counter spooled = new Counter();
+  private final Counter replayed = new Counter();
+  private final Counter spoolDropped = new Counter();
+  private final PayloadBuffer replayBuffer = new PayloadBuffer(2048);
+  private final int maxRetries;
+  private final long initialBackoff;   // in milliseconds
+  private final long maxBackoff;       // in milliseconds
+  private final long retryBudget;      // in milliseconds
+  private final Random jitter = new Random();
+  private final Counter retries = new Counter();
+  private final CircuitBreaker circuitBreaker;
+  private final Counter circuitRefused = new Counter();
+  private final CounterType counterType;
+  private final CounterDeltaTable counterDeltas;
+  private final AtomicLong lastFlush = new AtomicLong(System.currentTimeMillis());
 
-  private HttpTransport(String apiKey, int connectTimeout, int socketTimeout) {
-    this.seriesUrl = String.format("%s/series?api_key=%s", BASE_URL, apiKey);
-    this.connectTimeout = connectTimeout;
-    this.socketTimeout = socketTimeout;
+  private HttpTransport(Builder builder) {
+    for (int i = 1; i < responses.length; i++) {
+      responses[i] = new Counter();
+    }
+    this.seriesUrl = String.format("%s/series?api_key=%s", builder.baseUrl, builder.apiKey);
+    this.connectTimeout = builder.connectTimeout;
+    this.socketTimeout = builder.socketTimeout;
+    this.compression = builder.compression;
+    this.compressionLevel = builder.compressionLevel;
+    this.maxSeriesPerBatch = builder.maxSeriesPerBatch;
+    this.maxBytesPerBatch = builder.maxBytesPerBatch;
+    this.maxRetries = builder.maxRetries;
+    this.initialBackoff = builder.initialBackoff;
+    this.maxBackoff = builder.maxBackoff;
+    this.retryBudget = builder.retryBudget;
+    this.circuitBreaker = new CircuitBreaker(builder.circuitFailureThreshold,
+        builder.circuitOpenDuration);
+    this.counterType = builder.counterType;
+    this.counterDeltas = (counterType != CounterType.COUNTER)
+        ? new CounterDeltaTable(builder.counterExpiry, builder.maxTrackedCounters) : null;
+    if (maxSeriesPerBatch > 0 || maxBytesPerBatch > 0) {
+      this.batchExecutor = Executors.newFixedThreadPool(builder.batchConcurrency,
+          new NamedThreadFactory("datadog-http-batch"));
+    } else {
+      this.batchExecutor = null;
+    }
+
+    final int maxConnections = (builder.maxConnections > 0)
+        ? builder.maxConnections : builder.batchConcurrency;
+    final long keepAlive = builder.keepAlive;
+    this.connectionManager = new PoolingHttpClientConnectionManager(
+        builder.connectionTimeToLive, TimeUnit.MILLISECONDS);
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    this.httpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+          @Override
+          public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            // Honor a shorter keep-alive advertised by the server, but never hold an idle
+            // connection longer than configured.
+            long duration = super.getKeepAliveDuration(response, context);
+            return (duration < 0 || duration > keepAlive) ? keepAlive : duration;
+          }
+        })
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectionRequestTimeout(connectTimeout)
+            .build())
+        .build();
+    this.executor = Executor.newInstance(httpClient);
+    this.sendQueue = (builder.sendQueueSize > 0)
+        ? new SendQueue(this, builder.sendQueueSize, builder.overflowPolicy) : null;
+
+    if (builder.spoolDirectory != null) {
+      try {
+        this.spool = new Spool(builder.spoolDirectory, builder.spoolMaxBytes,
+            builder.spoolSegmentBytes);
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Cannot open spool in " + builder.spoolDirectory, e);
+      }
+      this.replayExecutor = Executors.newSingleThreadScheduledExecutor(
+          new NamedThreadFactory("datadog-http-replay"));
+      replayExecutor.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          replay();
+        }
+      }, builder.spoolReplayInterval, builder.spoolReplayInterval, TimeUnit.MILLISECONDS);
+    } else {
+      this.spool = null;
+      this.replayExecutor = null;
+    }
+  }
+
+  /**
+   * Content encodings the series payload can be compressed with before it is posted.
+   */
+  public static enum Compression {
+    NONE(null) {
+      OutputStream wrap(OutputStream out, int level) {
+        return out;
+      }
+    },
+    GZIP("gzip") {
+      OutputStream wrap(OutputStream out, final int level) throws IOException {
+        return new GZIPOutputStream(out, COMPRESSION_BUFFER_SIZE) {
+          {
+            def.setLevel(level);
+          }
+        };
+      }
+    },
+    DEFLATE("deflate") {
+      OutputStream wrap(OutputStream out, int level) {
+        final Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, COMPRESSION_BUFFER_SIZE) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              deflater.end();
+            }
+          }
+        };
+      }
+    };
+
+    private final String contentEncoding;
+
+    private Compression(String contentEncoding) {
+      this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * The value of the Content-Encoding header, or null when the payload is not compressed.
+     */
+    public String getContentEncoding() {
+      return contentEncoding;
+    }
+
+    /**
+     * Wrap the payload stream so that everything written to it is compressed. Closing the
+     * returned stream finishes the compressed data.
+     */
+    abstract OutputStream wrap(OutputStream out, int level) throws IOException;
+  }
+
+  /**
+   * What to do with an encoded report when the asynchronous send queue is full.
+   */
+  public static enum OverflowPolicy {
+    /**
+     * Give up the oldest queued report to make room for the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Give up the new report.
+     */
+    DROP_NEWEST,
+    /**
+     * Make the reporter wait until the queue has room.
+     */
+    BLOCK
+  }
+
+  /**
+   * How counters are sent.
+   */
+  public static enum CounterType {
+    /**
+     * The count since the counter was created, as a datadog counter.
+     */
+    COUNTER,
+    /**
+     * The count since the previous report, as a datadog count over the interval since then.
+     */
+    COUNT,
+    /**
+     * The count since the previous report divided by the interval since then, as a datadog rate
+     * per second.
+     */
+    RATE
   }
 
   public static class Builder {
+    String baseUrl = BASE_URL;
     String apiKey;
     int connectTimeout = 5000;
     int socketTimeout = 5000;
+    Compression compression = Compression.NONE;
+    int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    int maxSeriesPerBatch = 0;
+    int maxBytesPerBatch = 0;
+    int batchConcurrency = 4;
+    int maxConnections = 0;
+    long keepAlive = 30000;
+    long connectionTimeToLive = 300000;
+    int sendQueueSize = 0;
+    OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    File spoolDirectory = null;
+    long spoolMaxBytes = 256L * 1024 * 1024;
+    int spoolSegmentBytes = 8 * 1024 * 1024;
+    long spoolReplayInterval = 1000;
+    int maxRetries = 0;
+    long initialBackoff = 100;
+    long maxBackoff = 2000;
+    long retryBudget = 5000;
+    int circuitFailureThreshold = 0;
+    long circuitOpenDuration = 30000;
+    CounterType counterType = CounterType.COUNTER;
+    int counterExpiry = 10;
+    int maxTrackedCounters = 100000;
 
+    /**
+     * Post to another api endpoint, only meant for tests.
+     */
+    Builder withBaseUrl(String baseUrl) {
+      this.baseUrl = baseUrl;
+      return this;
+    }
 
     public Builder withApiKey(String key) {
       this.apiKey = key;
@@ -56,8 +330,222 @@ public class HttpTransport implements Transport {
       return this;
     }
 
+    /**
+     * Compress the series payload with the given encoding at the default level.
+     */
+    public Builder withCompression(Compression compression) {
+      return withCompression(compression, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Compress the series payload with the given encoding.
+     *
+     * @param level
+     *            the compression level, from 0 (none) to 9 (best), or -1 for the default
+     */
+    public Builder withCompression(Compression compression, int level) {
+      if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+        throw new IllegalArgumentException("Invalid compression level: " + level);
+      }
+      this.compression = compression;
+      this.compressionLevel = level;
+      return this;
+    }
+
+    /**
+     * Cut a report into batches of at most this many series. 0, the default, means no limit.
+     */
+    public Builder withMaxSeriesPerBatch(int maxSeries) {
+      this.maxSeriesPerBatch = maxSeries;
+      return this;
+    }
+
+    /**
+     * Cut a report into batches of about this many bytes of json, measured before
+     * compression. A batch may exceed it by one series. 0, the default, means no limit.
+     */
+    public Builder withMaxBytesPerBatch(int maxBytes) {
+      this.maxBytesPerBatch = maxBytes;
+      return this;
+    }
+
+    /**
+     * The number of batches posted concurrently when a report is split. Default is 4.
+     */
+    public Builder withBatchConcurrency(int concurrency) {
+      if (concurrency < 1) {
+        throw new IllegalArgumentException("Batch concurrency must be positive: " + concurrency);
+      }
+      this.batchConcurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * The size of the connection pool. Defaults to the batch concurrency.
+     */
+    public Builder withMaxConnections(int maxConnections) {
+      this.maxConnections = maxConnections;
+      return this;
+    }
+
+    /**
+     * How long an idle connection is kept open for the next report, unless the server asks
+     * for less. Default is 30 seconds.
+     */
+    public Builder withKeepAlive(long milliseconds) {
+      this.keepAlive = milliseconds;
+      return this;
+    }
+
+    /**
+     * The maximum lifetime of a pooled connection, after which it is reopened (and the
+     * endpoint resolved again). Default is 5 minutes.
+     */
+    public Builder withConnectionTimeToLive(long milliseconds) {
+      this.connectionTimeToLive = milliseconds;
+      return this;
+    }
+
+    /**
+     * Send reports from a dedicated I/O thread, so that a report only encodes the series and
+     * hands them to a queue of at most this many reports. 0, the default, sends on the
+     * reporter thread.
+     */
+    public Builder withAsyncSend(int queueSize) {
+      this.sendQueueSize = queueSize;
+      return this;
+    }
+
+    /**
+     * What to do when the asynchronous send queue is full. Default is to drop the oldest
+     * queued report.
+     */
+    public Builder withOverflowPolicy(OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    /**
+     * Keep the batches that could not be posted in this directory, and post them again once
+     * the intake accepts series. Batches the intake rejected as invalid are not kept. Disabled
+     * by default.
+     */
+    public Builder withSpool(File directory) {
+      this.spoolDirectory = directory;
+      return this;
+    }
+
+    /**
+     * The disk space the spool may use, past which the oldest batches are dropped. Default is
+     * 256MB.
+     */
+    public Builder withSpoolMaxBytes(long maxBytes) {
+      this.spoolMaxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * The size of the spool files. A batch larger than this is not spooled, and space is
+     * reclaimed a file at a time. Default is 8MB.
+     */
+    public Builder withSpoolSegmentBytes(int segmentBytes) {
+      this.spoolSegmentBytes = segmentBytes;
+      return this;
+    }
+
+    /**
+     * The delay between two spooled batches posted again, which bounds the extra load put on
+     * the intake while it recovers. Default is 1 second.
+     */
+    public Builder withSpoolReplayInterval(long milliseconds) {
+      if (milliseconds <= 0) {
+        throw new IllegalArgumentException("Replay interval must be positive: " + milliseconds);
+      }
+      this.spoolReplayInterval = milliseconds;
+      return this;
+    }
+
+    /**
+     * Post a batch again up to this many times when the intake can't be reached, times out,
+     * throttles (429) or errors (5xx). 0, the default, means a single attempt.
+     */
+    public Builder withMaxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * The backoff before a retry starts at {@code initial} and doubles after each attempt up to
+     * {@code max}. Each wait is drawn at random between 0 and the backoff, so that reporters
+     * failing together don't retry together. Defaults are 100 milliseconds and 2 seconds.
+     */
+    public Builder withRetryBackoff(long initialMilliseconds, long maxMilliseconds) {
+      if (initialMilliseconds <= 0 || maxMilliseconds < initialMilliseconds) {
+        throw new IllegalArgumentException("Invalid retry backoff: " + initialMilliseconds
+            + ", " + maxMilliseconds);
+      }
+      this.initialBackoff = initialMilliseconds;
+      this.maxBackoff = maxMilliseconds;
+      return this;
+    }
+
+    /**
+     * The time the delivery of the batches of a report may take with their retries, counted
+     * from the start of the send, so that it also covers batches waiting for the batch pool. The
+     * timeouts of each attempt are cut to the time left, no retry is started once it is spent,
+     * and batches still waiting then fail without being posted. It must be below the reporting
+     * period, so that retries never delay the next report, which the reporter checks when it is
+     * started. Default is 5 seconds.
+     */
+    public Builder withRetryBudget(long milliseconds) {
+      if (milliseconds <= 0) {
+        throw new IllegalArgumentException("Retry budget must be positive: " + milliseconds);
+      }
+      this.retryBudget = milliseconds;
+      return this;
+    }
+
+    /**
+     * Stop posting for {@code openMilliseconds} after this many consecutive failed attempts,
+     * then let a single batch through to probe the intake. Batches refused meanwhile fail
+     * right away, and are spooled if a spool is configured. 0, the default, disables it.
+     */
+    public Builder withCircuitBreaker(int failureThreshold, long openMilliseconds) {
+      this.circuitFailureThreshold = failureThreshold;
+      this.circuitOpenDuration = openMilliseconds;
+      return this;
+    }
+
+    /**
+     * Send counters as the count since the previous report, as datadog counts or rates, rather
+     * than as the count since they were created. A counter seen for the first time, or again
+     * after it expired, is sent with its full count. Default is {@link CounterType#COUNTER}.
+     */
+    public Builder withCounterType(CounterType counterType) {
+      this.counterType = counterType;
+      return this;
+    }
+
+    /**
+     * Forget the last count of a counter series that has not been reported for this many
+     * reports, when counters are sent as counts or rates. Defaults to 10.
+     */
+    public Builder withCounterExpiry(int reports) {
+      this.counterExpiry = reports;
+      return this;
+    }
+
+    /**
+     * Bound the number of counter series whose last count is kept, when counters are sent as
+     * counts or rates. Defaults to 100000.
+     */
+    public Builder withMaxTrackedCounters(int maxTrackedCounters) {
+      this.maxTrackedCounters = maxTrackedCounters;
+      return this;
+    }
+
     public HttpTransport build() {
-      return new HttpTransport(apiKey, connectTimeout, socketTimeout);
+      return new HttpTransport(this);
     }
   }
 
@@ -66,61 +554,538 @@ public class HttpTransport implements Transport {
   }
 
   public void close() throws IOException {
+    if (sendQueue != null) {
+      sendQueue.close(connectTimeout + socketTimeout);
+    }
+    if (batchExecutor != null) {
+      batchExecutor.shutdown();
+    }
+    if (replayExecutor != null) {
+      replayExecutor.shutdownNow();
+      try {
+        replayExecutor.awaitTermination(connectTimeout + socketTimeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      spool.close();
+    }
+    httpClient.close();
+  }
+
+  /**
+   * The counter expiry when counters are sent as counts or rates, or 0 when they are sent as
+   * their count since they were created.
+   */
+  public int getCounterExpiry() {
+    return (counterDeltas != null) ? counterDeltas.getMaxMissedFlushes() : 0;
+  }
+
+  /**
+   * The longest the delivery of the batches of a report may take with their retries, or 0 when
+   * batches are not retried and each post only waits for the connect and socket timeouts.
+   */
+  public long getRetryBudget() {
+    return (maxRetries > 0) ? retryBudget : 0;
+  }
+
+  /**
+   * Counts of batches that were and were not accepted by datadog, of the json bytes encoded and
+   * the (possibly compressed) bytes posted, of responses by status class, and the state of the
+   * connection pool, of the send queue and of the spool, of retries, and the state of the circuit
+   * breaker (0 closed, 1 open, 2 half open), and of the counter series tracked when counters are
+   * sent as counts or rates. Register these with a
+   * {@link com.codahale.metrics.MetricRegistry} to tune the batch limits and the pool size.
+   */
+  public Map<String, Metric> getMetrics() {
+    Map<String, Metric> metrics = new HashMap<String, Metric>();
+    metrics.put("batches.succeeded", batchesSucceeded);
+    metrics.put("batches.failed", batchesFailed);
+    metrics.put("bytes.encoded", bytesEncoded);
+    metrics.put("bytes.sent", bytesSent);
+    for (int i = 1; i < responses.length; i++) {
+      metrics.put("responses." + i + "xx", responses[i]);
+    }
+    metrics.put("retries", retries);
+    if (counterDeltas != null) {
+      metrics.putAll(counterDeltas.getMetrics());
+    }
+    metrics.put("circuit.state", new Gauge<Integer>() {
+      public Integer getValue() {
+        return circuitBreaker.getState().ordinal();
+      }
+    });
+    metrics.put("circuit.opened", new Gauge<Long>() {
+      public Long getValue() {
+        return circuitBreaker.getOpened();
+      }
+    });
+    metrics.put("circuit.refused", circuitRefused);
+    metrics.put("connections.leased", new Gauge<Integer>() {
+      public Integer getValue() {
+        return connectionManager.getTotalStats().getLeased();
+      }
+    });
+    metrics.put("connections.available", new Gauge<Integer>() {
+      public Integer getValue() {
+        return connectionManager.getTotalStats().getAvailable();
+      }
+    });
+    if (sendQueue != null) {
+      metrics.put("queue.size", new Gauge<Integer>() {
+        public Integer getValue() {
+          return sendQueue.size();
+        }
+      });
+      metrics.put("queue.dropped", sendQueue.getDropped());
+    }
+    if (spool != null) {
+      metrics.put("spool.pending", new Gauge<Integer>() {
+        public Integer getValue() {
+          return spool.pending();
+        }
+      });
+      metrics.put("spool.evicted", new Gauge<Long>() {
+        public Long getValue() {
+          return spool.evicted();
+        }
+      });
+      metrics.put("spool.spooled", spooled);
+      metrics.put("spool.replayed", replayed);
+      metrics.put("spool.dropped", spoolDropped);
+    }
+    return Collections.unmodifiableMap(metrics);
+  }
+
+  /**
+   * Start a new flush of the counter deltas, and return the number of seconds since the
+   * previous one, or since the transport was built, rounded and at least 1.
+   */
+  long startFlush() {
+    if (counterDeltas == null) {
+      return 0;
+    }
+    counterDeltas.startFlush();
+    long now = System.currentTimeMillis();
+    return Math.max(1, Math.round((now - lastFlush.getAndSet(now)) / 1000.0));
+  }
+
+  /**
+   * Take a payload buffer from the pool, so that steady state reports reuse the memory of
+   * the previous ones rather than allocating a new payload each time.
+   */
+  PayloadBuffer acquireBuffer() {
+    PayloadBuffer buffer = buffers.poll();
+    return (buffer == null) ? new PayloadBuffer(2048) : buffer;
+  }
+
+  void releaseBuffer(PayloadBuffer buffer) {
+    buffer.reset();
+    buffers.offer(buffer);
+  }
+
+  int pooledBuffers() {
+    return buffers.size();
+  }
+
+  /**
+   * Hand the batches of one report to the send queue, or post them right away when sending
+   * synchronously.
+   */
+  void dispatch(List<Batch> batches) throws Exception {
+    if (sendQueue != null) {
+      sendQueue.enqueue(batches);
+    } else {
+      send(batches);
+    }
+  }
+
+  /**
+   * Give up a report without sending it.
+   */
+  void discard(List<Batch> batches) {
+    for (Batch batch : batches) {
+      releaseBuffer(batch.buffer);
+    }
   }
 
-  public static class HttpRequest implements Transport.Request {
-    protected final Serializer serializer;
+  /**
+   * Post the batches of one report. A single batch is posted on the calling thread, several
+   * are posted concurrently on the batch pool. Every batch is attempted even when some of
+   * them fail, and the first failure is rethrown once all of them completed. All of them share
+   * the retry budget, which starts now.
+   */
+  void send(List<Batch> batches) throws Exception {
+    final long deadline = System.currentTimeMillis() + retryBudget;
+    if (batches.size() == 1) {
+      post(batches.get(0), deadline);
+      return;
+    }
+
+    List<Future<?>> futures = new ArrayList<Future<?>>(batches.size());
+    for (final Batch batch : batches) {
+      futures.add(batchExecutor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          post(batch, deadline);
+          return null;
+        }
+      }));
+    }
+
+    Throwable failure = null;
+    int failed = 0;
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        failed++;
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      }
+    }
+    if (failure != null) {
+      throw new IOException(failed + " of " + batches.size() + " batches failed", failure);
+    }
+  }
+
+  private void post(Batch batch, long deadline) throws IOException {
+    try {
+      bytesEncoded.inc(batch.encoded.getCount());
+      deliver(batch.buffer, compression, maxRetries, deadline);
+      batchesSucceeded.inc();
+    } catch (IOException e) {
+      batchesFailed.inc();
+      if (spool != null && isRetryable(e)) {
+        spool(batch.buffer);
+      }
+      throw e;
+    } finally {
+      releaseBuffer(batch.buffer);
+    }
+  }
+
+  /**
+   * Whether a failed post may succeed later. The intake answers 4xx for payloads it will never
+   * accept, except for 429 when it throttles.
+   */
+  private static boolean isRetryable(IOException e) {
+    if (e instanceof RejectedException) {
+      int status = ((RejectedException) e).status;
+      return status / 100 != 4 || status == 429;
+    }
+    return true;
+  }
+
+  private void spool(PayloadBuffer buffer) {
+    try {
+      if (buffer.spoolTo(spool, (byte) compression.ordinal())) {
+        spooled.inc();
+      } else {
+        spoolDropped.inc();
+      }
+    } catch (IOException e) {
+      spoolDropped.inc();
+      LOG.warn("Unable to spool failed batch", e);
+    }
+  }
+
+  /**
+   * Post the oldest spooled batch, and remove it from the spool unless it failed for a reason
+   * worth retrying, in which case it is posted again on the next run.
+   */
+  void replay() {
+    try {
+      replayBuffer.reset();
+      int encoding = spool.peek(replayBuffer);
+      if (encoding < 0) {
+        return;
+      }
+      if (encoding < Compression.values().length) {
+        try {
+          deliver(replayBuffer, Compression.values()[encoding], 0, 0);
+          replayed.inc();
+        } catch (IOException e) {
+          if (isRetryable(e)) {
+            LOG.debug("Unable to replay spooled batch, will retry", e);
+            return;
+          }
+          spoolDropped.inc();
+          LOG.warn("Datadog rejected spooled batch, dropping it", e);
+        }
+      } else {
+        spoolDropped.inc();
+        LOG.warn("Dropping spooled batch of unknown encoding " + encoding);
+      }
+      spool.commit();
+    } catch (Exception e) {
+      // An exception would cancel the replay schedule
+      LOG.warn("Unable to replay spooled batch", e);
+    }
+  }
+
+  /**
+   * Post a payload through the circuit breaker, retrying up to {@code retries} times with
+   * jittered exponential backoff while the failure is retryable, the circuit is closed and the
+   * retry budget is not spent by the {@code deadline}. When retrying, the connect and socket
+   * timeouts of each attempt are cut to the time left in the budget, so that the whole delivery
+   * fits in it, and a payload is not posted at all once it is spent.
+   */
+  private void deliver(PayloadBuffer buffer, Compression compression, int retries, long deadline)
+      throws IOException {
+    if (retries > 0 && System.currentTimeMillis() >= deadline) {
+      throw new IOException(
+          "Retry budget of " + retryBudget + " ms spent before the batch was posted");
+    }
+    if (!circuitBreaker.allowRequest()) {
+      circuitRefused.inc();
+      throw new CircuitOpenException();
+    }
+    long backoff = initialBackoff;
+    for (int attempt = 0; ; attempt++) {
+      long timeLeft = (retries > 0) ? deadline - System.currentTimeMillis() : Integer.MAX_VALUE;
+      try {
+        post(buffer, compression, (int) Math.max(1, Math.min(timeLeft, Integer.MAX_VALUE)));
+        circuitBreaker.onSuccess();
+        return;
+      } catch (IOException e) {
+        if (!isRetryable(e)) {
+          // The intake answered, it is up
+          circuitBreaker.onSuccess();
+          throw e;
+        }
+        circuitBreaker.onFailure();
+        long wait = (long) (jitter.nextDouble() * backoff);
+        if (attempt >= retries || circuitBreaker.getState() != CircuitBreaker.State.CLOSED
+            || System.currentTimeMillis() + wait >= deadline) {
+          throw e;
+        }
+        LOG.debug("Retrying post to Datadog in " + wait + " ms", e);
+        this.retries.inc();
+        try {
+          Thread.sleep(wait);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+        backoff = Math.min(backoff * 2, maxBackoff);
+      } catch (RuntimeException e) {
+        circuitBreaker.onFailure();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Post a payload once, with the connect and socket timeouts cut to {@code maxTimeout}
+   * milliseconds.
+   */
+  private void post(PayloadBuffer buffer, Compression compression, int maxTimeout)
+      throws IOException {
+    if (LOG.isDebugEnabled()) {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Sending HTTP POST request to ");
+      sb.append(seriesUrl);
+      if (compression == Compression.NONE) {
+        sb.append(", POST body is: \n");
+        sb.append(buffer.toString("UTF-8"));
+      } else {
+        sb.append(", POST body is ").append(buffer.size()).append(" bytes of ");
+        sb.append(compression.getContentEncoding());
+      }
+      LOG.debug(sb.toString());
+    }
+    bytesSent.inc(buffer.size());
+    long start = System.currentTimeMillis();
+    org.apache.http.client.fluent.Request request = Post(seriesUrl)
+        .useExpectContinue()
+        .connectTimeout(Math.min(connectTimeout, maxTimeout))
+        .socketTimeout(Math.min(socketTimeout, maxTimeout))
+        .body(buffer.toEntity(ContentType.APPLICATION_JSON));
+    if (compression != Compression.NONE) {
+      request.addHeader("Content-Encoding", compression.getContentEncoding());
+    }
+    HttpResponse httpResponse = executor.execute(request).returnResponse();
+    long elapsed = System.currentTimeMillis() - start;
+    int status = httpResponse.getStatusLine().getStatusCode();
+    if (status >= 100 && status < 600) {
+      responses[status / 100].inc();
+    }
+
+    if (LOG.isDebugEnabled()) {
+      StringBuilder sb = new StringBuilder();
+
+      sb.append("Sent metrics to Datadog: ");
+      sb.append("  Timing: ").append(elapsed).append(" ms\n");
+      sb.append("  Status: ").append(status).append("\n");
 
+      String content = EntityUtils.toString(httpResponse.getEntity(), "UTF-8");
+      sb.append("  Content: ").append(content);
+
+      LOG.debug(sb.toString());
+    }
+    if (status / 100 != 2) {
+      throw new RejectedException(status);
+    }
+  }
+
+  /**
+   * A post refused without a request because the circuit breaker is open.
+   */
+  static class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CircuitOpenException() {
+      super("Datadog intake is unhealthy, circuit breaker is open");
+    }
+  }
+
+  /**
+   * A post that reached the intake but was not accepted.
+   */
+  static class RejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    RejectedException(int status) {
+      super("Datadog rejected series with status " + status);
+      this.status = status;
+    }
+  }
+
+  /**
+   * One POST worth of series, serialized into its own pooled buffer.
+   */
+  static class Batch {
+    private final PayloadBuffer buffer;
+    private final CountingOutputStream encoded;
+    private final JsonSerializer serializer;
+    private int series;
+
+    Batch(HttpTransport transport) throws IOException {
+      buffer = transport.acquireBuffer();
+      encoded = new CountingOutputStream(
+          transport.compression.wrap(buffer, transport.compressionLevel));
+      serializer = new DirectJsonSerializer(encoded);
+      serializer.startObject();
+    }
+
+    void addGauge(DatadogGauge gauge) throws IOException {
+      serializer.appendGauge(gauge);
+      series++;
+    }
+
+    void addCounter(DatadogCounter counter) throws IOException {
+      serializer.appendCounter(counter);
+      series++;
+    }
+
+    /**
+     * Whether the batch reached one of the limits. A batch is cut after the series that
+     * reached a limit, so it can exceed the byte limit by at most one series.
+     */
+    boolean isFull(HttpTransport transport) throws IOException {
+      if (transport.maxSeriesPerBatch > 0 && series >= transport.maxSeriesPerBatch) {
+        return true;
+      }
+      if (transport.maxBytesPerBatch > 0) {
+        serializer.flush();
+        return encoded.getCount() >= transport.maxBytesPerBatch;
+      }
+      return false;
+    }
+
+    void finish() throws IOException {
+      serializer.endObject();
+    }
+
+    /**
+     * Close the stream of a batch that will not be finished, which ends its compressor.
+     */
+    void abort() {
+      try {
+        encoded.close();
+      } catch (IOException e) {
+        LOG.debug("Unable to close aborted batch", e);
+      }
+    }
+  }
+
+  public static class HttpRequest implements Transport.AbortableRequest {
     protected final HttpTransport transport;
 
+    private final List<Batch> batches = new ArrayList<Batch>();
+    private final long interval;
+    private Batch batch;
+    private boolean dispatched;
+
     public HttpRequest(HttpTransport transport) throws IOException {
       this.transport = transport;
-      serializer = new JsonSerializer();
-      serializer.startObject();
+      this.interval = transport.startFlush();
+      this.batch = new Batch(transport);
     }
 
     public void addGauge(DatadogGauge gauge) throws IOException {
-      serializer.appendGauge(gauge);
+      currentBatch().addGauge(gauge);
+      cutIfFull();
     }
 
     public void addCounter(DatadogCounter counter) throws IOException {
-      serializer.appendCounter(counter);
+      if (transport.counterType == CounterType.COUNTER) {
+        currentBatch().addCounter(counter);
+      } else {
+        long count = counter.isDelta() ? counter.getValue()
+            : transport.counterDeltas.delta(counter.getSeriesName(), counter.getValue());
+        if (transport.counterType == CounterType.COUNT) {
+          currentBatch().addCounter(new DatadogCounter(counter.getSeriesName(), count,
+              counter.getEpoch(), counter.getHost(), true, interval));
+        } else {
+          currentBatch().addGauge(new DatadogRate(counter.getSeriesName(),
+              count / (double) interval, counter.getEpoch(), counter.getHost(), interval));
+        }
+      }
+      cutIfFull();
     }
 
     public void send() throws Exception {
-      serializer.endObject();
-      String postBody = serializer.getAsString();
-      if (LOG.isDebugEnabled()) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Sending HTTP POST request to ");
-        sb.append(this.transport.seriesUrl);
-        sb.append(", POST body is: \n");
-        sb.append(postBody);
-        LOG.debug(sb.toString());
-      }
-      long start = System.currentTimeMillis();
-      Response response = Post(this.transport.seriesUrl)
-          .useExpectContinue()
-          .connectTimeout(this.transport.connectTimeout)
-          .socketTimeout(this.transport.socketTimeout)
-          .bodyString(postBody, ContentType.APPLICATION_JSON)
-          .execute();
-      long elapsed = System.currentTimeMillis() - start;
-
-      if (LOG.isDebugEnabled()) {
-        HttpResponse httpResponse = response.returnResponse();
-        StringBuilder sb = new StringBuilder();
-
-        sb.append("Sent metrics to Datadog: ");
-        sb.append("  Timing: ").append(elapsed).append(" ms\n");
-        sb.append("  Status: ").append(httpResponse.getStatusLine().getStatusCode()).append("\n");
-
-        String content = EntityUtils.toString(httpResponse.getEntity(), "UTF-8");
-        sb.append("  Content: ").append(content);
-
-        LOG.debug(sb.toString());
-      } else {
-        response.discardContent();
+      if (batch != null || batches.isEmpty()) {
+        currentBatch().finish();
+        batches.add(batch);
+        batch = null;
+      }
+      // from here on the transport releases the batches, sent or not
+      dispatched = true;
+      transport.dispatch(batches);
+    }
+
+    /**
+     * Release the batches built so far, and end the compression of the current one.
+     */
+    public void abort() {
+      if (dispatched) {
+        return;
+      }
+      dispatched = true;
+      if (batch != null) {
+        batch.abort();
+        batches.add(batch);
+        batch = null;
+      }
+      transport.discard(batches);
+    }
+
+    private Batch currentBatch() throws IOException {
+      if (batch == null) {
+        batch = new Batch(transport);
+      }
+      return batch;
+    }
+
+    private void cutIfFull() throws IOException {
+      if (batch.isFull(transport)) {
+        batch.finish();
+        batches.add(batch);
+        batch = null;
       }
     }
   }
@@ -0,0 +1,23 @@
+package org.coursera.metrics.datadog.transport;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named after the transport that owns them, so that a transport
+ * which is never closed cannot keep the JVM alive.
+ */
+class NamedThreadFactory implements ThreadFactory {
+  private final String name;
+  private final AtomicInteger count = new AtomicInteger();
+
+  NamedThreadFactory(String name) {
+    this.name = name;
+  }
+
+  public Thread newThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+}
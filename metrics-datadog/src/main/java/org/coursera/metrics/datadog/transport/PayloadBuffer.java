@@ -0,0 +1,31 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A growable byte buffer that hands its backing array to the http entity as is, so a
+ * serialized report is never copied into a string or a second array. Buffers are pooled
+ * by {@link HttpTransport} and reset between reports.
+ */
+class PayloadBuffer extends ByteArrayOutputStream {
+
+  PayloadBuffer(int size) {
+    super(size);
+  }
+
+  HttpEntity toEntity(ContentType contentType) {
+    return new ByteArrayEntity(buf, 0, count, contentType);
+  }
+
+  /**
+   * Append the content to the spool as is, without copying it.
+   */
+  boolean spoolTo(Spool spool, byte encoding) throws IOException {
+    return spool.append(encoding, buf, 0, count);
+  }
+}
@@ -0,0 +1,110 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.Counter;
+import org.coursera.metrics.datadog.transport.HttpTransport.Batch;
+import org.coursera.metrics.datadog.transport.HttpTransport.OverflowPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded queue of encoded reports, drained by a dedicated I/O thread so that the reporter
+ * thread only encodes and never waits on the network. When the queue is full, the
+ * {@link OverflowPolicy} decides which report is given up.
+ */
+class SendQueue implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(SendQueue.class);
+
+  // Compared by identity, to tell the I/O thread to stop once it reaches it
+  private static final List<Batch> SHUTDOWN = new ArrayList<Batch>(0);
+
+  private final HttpTransport transport;
+  private final OverflowPolicy overflowPolicy;
+  private final BlockingQueue<List<Batch>> queue;
+  private final Counter dropped = new Counter();
+  private final Thread thread;
+
+  SendQueue(HttpTransport transport, int capacity, OverflowPolicy overflowPolicy) {
+    this.transport = transport;
+    this.overflowPolicy = overflowPolicy;
+    this.queue = new ArrayBlockingQueue<List<Batch>>(capacity);
+    this.thread = new NamedThreadFactory("datadog-http-sender").newThread(this);
+    thread.start();
+  }
+
+  void enqueue(List<Batch> report) throws InterruptedException {
+    switch (overflowPolicy) {
+      case BLOCK:
+        queue.put(report);
+        break;
+      case DROP_NEWEST:
+        if (!queue.offer(report)) {
+          drop(report);
+        }
+        break;
+      case DROP_OLDEST:
+        while (!queue.offer(report)) {
+          List<Batch> oldest = queue.poll();
+          if (oldest != null) {
+            drop(oldest);
+          }
+        }
+        break;
+    }
+  }
+
+  int size() {
+    return queue.size();
+  }
+
+  Counter getDropped() {
+    return dropped;
+  }
+
+  public void run() {
+    while (true) {
+      List<Batch> report;
+      try {
+        report = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (report == SHUTDOWN) {
+        return;
+      }
+      try {
+        transport.send(report);
+      } catch (Throwable e) {
+        LOG.error("Error reporting metrics to Datadog", e);
+      }
+    }
+  }
+
+  /**
+   * Send what is still queued, giving up after the given time.
+   */
+  void close(long timeoutMillis) {
+    try {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      if (queue.offer(SHUTDOWN, timeoutMillis, TimeUnit.MILLISECONDS)) {
+        thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (thread.isAlive()) {
+      LOG.warn("Gave up sending " + queue.size() + " queued reports to Datadog");
+      thread.interrupt();
+    }
+  }
+
+  private void drop(List<Batch> report) {
+    dropped.inc();
+    transport.discard(report);
+  }
+}
@@ -0,0 +1,295 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A size capped log of payloads on local disk, made of fixed size memory-mapped segment files.
+ * Payloads are appended to the newest segment and read back oldest first. When the cap is
+ * reached the oldest segment is dropped, unread payloads included.
+ * <p/>
+ * Segments that are dropped or read through are renamed and reused for new payloads rather than
+ * deleted, since the blocks of a deleted file stay allocated for as long as it is mapped, which
+ * is until the mapping is garbage collected. The spool therefore never holds more segment files
+ * than the cap allows.
+ * <p/>
+ * A segment starts with the offset of its first unread record, followed by records of a 4 byte
+ * length, a 1 byte encoding and the payload. The length is written last, so a record is only
+ * visible once complete, and a zero length marks the end of the written part. Segments are
+ * left to the OS to write back, which survives a crash of the JVM but not of the machine.
+ * <p/>
+ * Reading is two steps, {@link #peek(OutputStream)} and {@link #commit()}, so that a payload is
+ * only removed once it has been delivered. All methods are synchronized.
+ */
+class Spool implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(Spool.class);
+  private static final int HEADER = 4;
+  private static final int RECORD_HEADER = 5;
+  private static final String SUFFIX = ".spool";
+
+  private final File directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+  private final LinkedList<Segment> spares = new LinkedList<Segment>();
+  private long nextSequence;
+  private int pending;
+  private long evicted;
+  private Segment peekedSegment;
+  private int peekedPosition = -1;
+  private int peekedGeneration;
+
+  /**
+   * Open the spool in the given directory, picking up the segments left by a previous run.
+   */
+  Spool(File directory, long maxBytes, int segmentBytes) throws IOException {
+    if (segmentBytes <= HEADER + RECORD_HEADER) {
+      throw new IllegalArgumentException("Spool segments are too small: " + segmentBytes);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create spool directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+
+    String[] names = directory.list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (names == null) {
+      throw new IOException("Cannot list spool directory " + directory);
+    }
+    Arrays.sort(names);
+    for (String name : names) {
+      long sequence;
+      try {
+        sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        LOG.warn("Ignoring unexpected file in spool directory: " + name);
+        continue;
+      }
+      Segment segment = new Segment(new File(directory, name), false);
+      segments.add(segment);
+      pending += segment.unread();
+      nextSequence = Math.max(nextSequence, sequence + 1);
+    }
+    while (segments.size() > maxSegments) {
+      evictOldest();
+    }
+  }
+
+  /**
+   * Append a payload, evicting the oldest segment if the spool is full. Returns false if the
+   * payload is larger than a segment and can't be spooled.
+   */
+  synchronized boolean append(byte encoding, byte[] payload, int offset, int length)
+      throws IOException {
+    int size = RECORD_HEADER + length;
+    if (HEADER + size > segmentBytes) {
+      return false;
+    }
+    Segment segment = segments.isEmpty() ? null : segments.getLast();
+    if (segment == null || segment.writePosition + size > segmentBytes) {
+      if (segments.size() >= maxSegments) {
+        evictOldest();
+      }
+      segment = newSegment();
+      segments.add(segment);
+    }
+    int position = segment.writePosition;
+    ByteBuffer out = segment.map.duplicate();
+    out.position(position + RECORD_HEADER);
+    out.put(payload, offset, length);
+    if (position + size + 4 <= segmentBytes) {
+      // ends the written part in a reused segment, ahead of the records it held before
+      segment.map.putInt(position + size, 0);
+    }
+    segment.map.put(position + 4, encoding);
+    segment.map.putInt(position, length);
+    segment.writePosition += size;
+    pending++;
+    return true;
+  }
+
+  /**
+   * Copy the oldest payload to {@code out} and return its encoding, or -1 if the spool is
+   * empty. The payload stays in the spool until {@link #commit()} is called.
+   */
+  synchronized int peek(OutputStream out) throws IOException {
+    while (!segments.isEmpty()) {
+      Segment segment = segments.getFirst();
+      int position = segment.map.getInt(0);
+      if (position < segment.writePosition) {
+        int length = segment.map.getInt(position);
+        byte encoding = segment.map.get(position + 4);
+        byte[] payload = new byte[length];
+        ByteBuffer in = segment.map.duplicate();
+        in.position(position + RECORD_HEADER);
+        in.get(payload);
+        out.write(payload);
+        peekedSegment = segment;
+        peekedPosition = position;
+        peekedGeneration = segment.generation;
+        return encoding & 0xff;
+      }
+      if (segment == segments.getLast()) {
+        break;
+      }
+      segments.removeFirst();
+      release(segment);
+    }
+    return -1;
+  }
+
+  /**
+   * Remove the payload returned by the last {@link #peek(OutputStream)}, unless it was evicted
+   * in the meantime.
+   */
+  synchronized void commit() {
+    if (peekedSegment != null && !segments.isEmpty() && segments.getFirst() == peekedSegment
+        && peekedSegment.generation == peekedGeneration
+        && peekedSegment.map.getInt(0) == peekedPosition) {
+      int length = peekedSegment.map.getInt(peekedPosition);
+      peekedSegment.map.putInt(0, peekedPosition + RECORD_HEADER + length);
+      pending--;
+    }
+    peekedSegment = null;
+    peekedPosition = -1;
+  }
+
+  /**
+   * Payloads waiting to be read.
+   */
+  synchronized int pending() {
+    return pending;
+  }
+
+  /**
+   * Payloads deleted unread because the spool was full.
+   */
+  synchronized long evicted() {
+    return evicted;
+  }
+
+  public synchronized void close() {
+    if (!segments.isEmpty()) {
+      segments.getLast().map.force();
+    }
+  }
+
+  private void evictOldest() {
+    Segment oldest = segments.removeFirst();
+    int unread = oldest.unread();
+    pending -= unread;
+    evicted += unread;
+    release(oldest);
+  }
+
+  /**
+   * A new empty segment, named after the next sequence number, reusing a spare one if any.
+   */
+  private Segment newSegment() throws IOException {
+    File file = new File(directory, String.format("%019d%s", nextSequence++, SUFFIX));
+    while (!spares.isEmpty()) {
+      Segment spare = spares.removeFirst();
+      if (spare.renameTo(file)) {
+        return spare;
+      }
+    }
+    return new Segment(file, true);
+  }
+
+  /**
+   * Empty a segment that is no longer part of the log, and keep it for reuse as long as the
+   * segments and spares stay within the cap.
+   */
+  private void release(Segment segment) {
+    segment.reset();
+    if (segments.size() + spares.size() < maxSegments) {
+      spares.add(segment);
+    } else {
+      segment.delete();
+    }
+  }
+
+  private final class Segment {
+    File file;
+    final MappedByteBuffer map;
+    int writePosition;
+    // bumped each time the segment is emptied for reuse
+    int generation;
+
+    Segment(File file, boolean create) throws IOException {
+      this.file = file;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+      } finally {
+        raf.close();
+      }
+      if (create) {
+        map.putInt(0, HEADER);
+        writePosition = HEADER;
+      } else {
+        int position = Math.max(HEADER, map.getInt(0));
+        writePosition = HEADER;
+        while (writePosition + RECORD_HEADER <= segmentBytes) {
+          int length = map.getInt(writePosition);
+          if (length <= 0 || writePosition + RECORD_HEADER + length > segmentBytes) {
+            break;
+          }
+          writePosition += RECORD_HEADER + length;
+        }
+        map.putInt(0, Math.min(position, writePosition));
+      }
+    }
+
+    int unread() {
+      int count = 0;
+      int position = map.getInt(0);
+      while (position < writePosition) {
+        position += RECORD_HEADER + map.getInt(position);
+        count++;
+      }
+      return count;
+    }
+
+    void reset() {
+      map.putInt(0, HEADER);
+      map.putInt(HEADER, 0);
+      writePosition = HEADER;
+      generation++;
+    }
+
+    /**
+     * Give the segment a new name, or delete it if it can't be renamed.
+     */
+    boolean renameTo(File target) {
+      if (!file.renameTo(target)) {
+        LOG.warn("Cannot reuse spool segment " + file + ", deleting it");
+        delete();
+        return false;
+      }
+      file = target;
+      return true;
+    }
+
+    void delete() {
+      file.delete();
+    }
+  }
+}
@@ -2,6 +2,7 @@ package org.coursera.metrics.datadog.transport;
 
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesName;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -38,4 +39,49 @@ public interface Transport extends Closeable {
      */
     void send() throws Exception;
   }
+
+  /**
+   * A request that holds resources until it is sent, and must be aborted if it is given up
+   * before {@link #send()} is called, e.g. because adding a series failed.
+   */
+  public interface AbortableRequest extends Request {
+
+    /**
+     * Release what the request holds without sending it. Does nothing once it was sent
+     */
+    void abort();
+  }
+
+  /**
+   * A transport that sends counters as increments, and so keeps the last count of each counter
+   * series, forgetting the series that were not sent for a number of reports.
+   */
+  public interface CounterTracking {
+
+    /**
+     * The number of reports a counter series may go unsent before its last count is forgotten,
+     * and its next count is sent in full, or 0 if the last counts are not kept
+     */
+    int getCounterExpiry();
+  }
+
+  /**
+   * A request that takes the values of a timer or histogram as they are, for the agent to
+   * compute percentiles that aggregate across hosts, instead of statistics computed by the
+   * reporter. The reporter sends distributions to requests of this type only.
+   */
+  public interface DistributionRequest extends Request {
+
+    /**
+     * Add the values of a distribution, sorted in ascending order, that sample the values
+     * recorded since the previous report at the given rate, at most 1
+     */
+    void addDistribution(SeriesName name, double[] values, double sampleRate) throws IOException;
+
+    /**
+     * Add the values of a distribution, sorted in ascending order, each standing for the
+     * number of values at the same index in {@code counts}, e.g. the bins of a sketch
+     */
+    void addDistribution(SeriesName name, double[] values, long[] counts) throws IOException;
+  }
 }
@@ -1,13 +1,22 @@
 package org.coursera.metrics.datadog.transport;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
 import com.timgroup.statsd.NonBlockingStatsDClient;
 import com.timgroup.statsd.StatsDClient;
+import com.timgroup.statsd.StatsDClientException;
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -15,34 +24,111 @@ import java.util.Map;
  * Uses dogstatsd UDP protocol to push metrics to datadog. Note that datadog doesn't support
  * time in the UDP protocol. So all metrics are against current time.
  * <p/>
- * Also dogstatsd UDP doesn't support batching of metrics, so it pushes metrics as it receives
- * rather than batching.
+ * By default metrics are pushed one packet each as they are received. With
+ * {@link Builder#withMaxPacketSize(int)} the lines of a report are instead packed, newline
+ * separated, into as few packets as fit the given size and sent when the report is sent.
+ * <p/>
+ * statsd expects counters as increments, so the last count pushed for each counter series is
+ * kept in a {@link CounterDeltaTable}, whose size and evictions are exposed as metrics through
+ * {@link #getMetrics()}, along with the packets and bytes sent, and the packets that could not be
+ * sent, when lines are packed. Counts that already are increments, see
+ * {@link DatadogCounter#isDelta()}, are sent as they are.
+ * <p/>
+ * With {@link Builder#withDistributions(DistributionType)} timers and histograms are sent as
+ * the values of their reservoir, for the agent to compute percentiles that aggregate across
+ * hosts, instead of as statistics computed per host.
  *
  * @see <a href="http://docs.datadoghq.com/guides/dogstatsd">dogstatsd</a>
  */
-public class UdpTransport implements Transport {
+public class UdpTransport implements Transport, Transport.CounterTracking, MetricSet {
 
   private static final Logger LOG = LoggerFactory.getLogger(UdpTransport.class);
   private final StatsDClient statsd;
-  private final Map lastSeenCounters = new HashMap<String, Long>();
-
-  private UdpTransport(String prefix, String statsdHost, int port, String[] globalTags) {
-    statsd = new NonBlockingStatsDClient(
-        prefix,
-        statsdHost,
-        port,
-        globalTags
-    );
+  private final DatagramChannel channel;
+  private final InetSocketAddress address;
+  private final String prefix;
+  private final int maxPacketSize;
+  private final CounterDeltaTable counterDeltas;
+  private final DistributionType distributionType;
+  private final int maxDistributionSamples;
+  private final boolean multiValueLines;
+  private final Counter packetsSent = new Counter();
+  private final Counter bytesSent = new Counter();
+  private final Counter packetsFailed = new Counter();
+  private final Counter distributionValues = new Counter();
+
+  private UdpTransport(String prefix, String statsdHost, int port, String[] globalTags,
+                       int maxPacketSize, CounterDeltaTable counterDeltas,
+                       DistributionType distributionType, int maxDistributionSamples,
+                       boolean multiValueLines) {
+    this.prefix = prefix;
+    this.maxPacketSize = maxPacketSize;
+    this.counterDeltas = counterDeltas;
+    this.distributionType = distributionType;
+    this.maxDistributionSamples = maxDistributionSamples;
+    this.multiValueLines = multiValueLines;
+    if (maxPacketSize > 0) {
+      statsd = null;
+      address = new InetSocketAddress(statsdHost, port);
+      try {
+        channel = DatagramChannel.open();
+      } catch (IOException e) {
+        throw new StatsDClientException("Failed to open dogstatsd channel", e);
+      }
+    } else {
+      channel = null;
+      address = null;
+      statsd = new NonBlockingStatsDClient(
+          prefix,
+          statsdHost,
+          port,
+          globalTags
+      );
+    }
   }
 
   public void close() throws IOException {
-    statsd.stop();
+    if (statsd != null) {
+      statsd.stop();
+    } else {
+      channel.close();
+    }
+  }
+
+  /**
+   * The dogstatsd type timers and histograms are sent as, see
+   * {@link Builder#withDistributions(DistributionType)}.
+   */
+  public static enum DistributionType {
+    /**
+     * Aggregated by datadog across all hosts, percentiles included.
+     */
+    DISTRIBUTION("d"),
+    /**
+     * Aggregated by the agent of each host.
+     */
+    HISTOGRAM("h");
+
+    private final String code;
+
+    private DistributionType(String code) {
+      this.code = code;
+    }
   }
 
   public static class Builder {
+    // packet size used for distributions when none is given, to stay within an ethernet MTU
+    private static final int DISTRIBUTION_PACKET_SIZE = 1432;
+
     String prefix = null;
     String statsdHost = "localhost";
     int port = 8125;
+    int maxPacketSize = 0;
+    int counterExpiry = 10;
+    int maxTrackedCounters = 100000;
+    DistributionType distributionType = null;
+    int maxDistributionSamples = 0;
+    boolean multiValueLines = false;
 
     public Builder withPrefix(String prefix) {
       this.prefix = prefix;
@@ -59,22 +145,116 @@ public class UdpTransport implements Transport {
       return this;
     }
 
+    /**
+     * Pack the lines of a report into packets of at most this many bytes, e.g. 1432 to stay
+     * within an ethernet MTU or 8192 for an agent on the same host. 0, the default, sends one
+     * packet per metric.
+     */
+    public Builder withMaxPacketSize(int maxPacketSize) {
+      this.maxPacketSize = maxPacketSize;
+      return this;
+    }
+
+    /**
+     * Forget the last count of a counter series that has not been reported for this many
+     * reports. Defaults to 10.
+     */
+    public Builder withCounterExpiry(int reports) {
+      this.counterExpiry = reports;
+      return this;
+    }
+
+    /**
+     * Bound the number of counter series whose last count is kept. Defaults to 100000.
+     */
+    public Builder withMaxTrackedCounters(int maxTrackedCounters) {
+      this.maxTrackedCounters = maxTrackedCounters;
+      return this;
+    }
+
+    /**
+     * Send the values of timers and histograms as dogstatsd distributions or histograms, instead
+     * of the statistics the reporter computes from them. Their count and rates are still sent
+     * as before. Lines are packed, into packets of 1432 bytes unless
+     * {@link #withMaxPacketSize(int)} says otherwise. Off by default.
+     */
+    public Builder withDistributions(DistributionType distributionType) {
+      this.distributionType = distributionType;
+      return this;
+    }
+
+    /**
+     * Send at most this many values of each distribution, evenly spread over its sorted values,
+     * with the matching sample rate. 0, the default, sends them all.
+     */
+    public Builder withMaxDistributionSamples(int maxDistributionSamples) {
+      this.maxDistributionSamples = maxDistributionSamples;
+      return this;
+    }
+
+    /**
+     * Put as many values of a distribution as fit a packet on a single line, which takes an
+     * agent that speaks dogstatsd 1.1 (6.25, 7.25 or later). Off by default, one line per value.
+     */
+    public Builder withMultiValueLines(boolean multiValueLines) {
+      this.multiValueLines = multiValueLines;
+      return this;
+    }
+
     public UdpTransport build() {
-      return new UdpTransport(prefix, statsdHost, port, new String[0]);
+      int packetSize = (distributionType != null && maxPacketSize == 0)
+          ? DISTRIBUTION_PACKET_SIZE : maxPacketSize;
+      return new UdpTransport(prefix, statsdHost, port, new String[0], packetSize,
+          new CounterDeltaTable(counterExpiry, maxTrackedCounters), distributionType,
+          maxDistributionSamples, multiValueLines);
     }
   }
 
+  public int getCounterExpiry() {
+    return counterDeltas.getMaxMissedFlushes();
+  }
+
+  public Map<String, Metric> getMetrics() {
+    Map<String, Metric> metrics = new HashMap<String, Metric>(counterDeltas.getMetrics());
+    metrics.put("packets.sent", packetsSent);
+    metrics.put("bytes.sent", bytesSent);
+    metrics.put("packets.failed", packetsFailed);
+    metrics.put("distribution.values", distributionValues);
+    return Collections.unmodifiableMap(metrics);
+  }
+
   public Request prepare() throws IOException {
-    return new DogstatsdRequest(statsd, lastSeenCounters);
+    counterDeltas.startFlush();
+    if (channel != null) {
+      DogstatsdPacker packer = new DogstatsdPacker(prefix, maxPacketSize) {
+        protected void write(ByteBuffer packet) throws IOException {
+          int bytes = packet.remaining();
+          try {
+            channel.send(packet, address);
+          } catch (IOException e) {
+            packetsFailed.inc();
+            throw e;
+          }
+          packetsSent.inc();
+          bytesSent.inc(bytes);
+        }
+      };
+      if (distributionType != null) {
+        return new DistributionDogstatsdRequest(packer, counterDeltas, distributionType,
+            maxDistributionSamples, multiValueLines, distributionValues);
+      }
+      return new BatchingDogstatsdRequest(packer, counterDeltas);
+    }
+    return new DogstatsdRequest(statsd, counterDeltas);
   }
 
   public static class DogstatsdRequest implements Transport.Request {
     private final StatsDClient statsdClient;
-    private final Map<String, Long> lastSeenCounters;
+    private final CounterDeltaTable counterDeltas;
 
-    public DogstatsdRequest(StatsDClient statsdClient, Map<String, Long> lastSeenCounters) {
+    public DogstatsdRequest(StatsDClient statsdClient, CounterDeltaTable counterDeltas) {
       this.statsdClient = statsdClient;
-      this.lastSeenCounters = lastSeenCounters;
+      this.counterDeltas = counterDeltas;
     }
 
     /**
@@ -98,30 +278,10 @@ public class UdpTransport implements Transport {
         LOG.debug("Counter " + counter.getMetric() + " has more than one data point, " +
             "will pick the first point only");
       }
-      long value = counter.getPoints().get(0).get(1).longValue();
       String[] tags = counter.getTags().toArray(new String[counter.getTags().size()]);
-      StringBuilder sb = new StringBuilder("");
-      for (int i=tags.length - 1; i>=0; i--) {
-        sb.append(tags[i]);
-        if (i > 0) {
-          sb.append(",");
-        }
-      }
-
-      String metric = counter.getMetric();
-      String finalMetricsSeenName = metric + ":" + sb.toString();
-      long finalValue = value;
-      if (lastSeenCounters.containsKey(finalMetricsSeenName)) {
-        // If we've seen this counter before then calculate the difference
-        // by subtracting the new value from the old. StatsD expects a relative
-        // counter, not an absolute!
-        finalValue = Math.max(0, value - lastSeenCounters.get(finalMetricsSeenName));
-      }
-      // Store the last value we saw so that the next addCounter call can make
-      // the proper relative value
-      lastSeenCounters.put(finalMetricsSeenName, value);
-
-      statsdClient.count(metric, finalValue, tags);
+      long delta = counter.isDelta() ? counter.getValue()
+          : counterDeltas.delta(counter.getSeriesName(), counter.getValue());
+      statsdClient.count(counter.getMetric(), delta, tags);
     }
 
     /**
@@ -130,4 +290,79 @@ public class UdpTransport implements Transport {
     public void send() {
     }
   }
+
+  /**
+   * Packs the lines of a report into as few packets as possible, which are written as they
+   * fill up and when the request is sent.
+   */
+  public static class BatchingDogstatsdRequest implements Transport.Request {
+    final DogstatsdPacker packer;
+    private final CounterDeltaTable counterDeltas;
+
+    BatchingDogstatsdRequest(DogstatsdPacker packer, CounterDeltaTable counterDeltas) {
+      this.packer = packer;
+      this.counterDeltas = counterDeltas;
+    }
+
+    public void addGauge(DatadogGauge gauge) throws IOException {
+      packer.gauge(gauge.getMetric(), gauge.getValue(), gauge.getTags());
+    }
+
+    public void addCounter(DatadogCounter counter) throws IOException {
+      long delta = counter.isDelta() ? counter.getValue()
+          : counterDeltas.delta(counter.getSeriesName(), counter.getValue());
+      packer.count(counter.getMetric(), delta, counter.getTags());
+    }
+
+    public void send() throws IOException {
+      packer.flush();
+    }
+  }
+
+  /**
+   * Packs the lines of a report like {@link BatchingDogstatsdRequest}, and the values of timers
+   * and histograms as distribution or histogram lines. Past {@code maxSamples} values, evenly
+   * spaced ones are sent with the matching sample rate, on top of the rate the values already
+   * sample the updates at, which the agent scales counts by.
+   */
+  public static class DistributionDogstatsdRequest extends BatchingDogstatsdRequest
+      implements Transport.DistributionRequest {
+    private final DistributionType type;
+    private final int maxSamples;
+    private final boolean multiValue;
+    private final Counter valuesSent;
+
+    DistributionDogstatsdRequest(DogstatsdPacker packer, CounterDeltaTable counterDeltas,
+        DistributionType type, int maxSamples, boolean multiValue, Counter valuesSent) {
+      super(packer, counterDeltas);
+      this.type = type;
+      this.maxSamples = maxSamples;
+      this.multiValue = multiValue;
+      this.valuesSent = valuesSent;
+    }
+
+    public void addDistribution(SeriesName name, double[] values, double sampleRate)
+        throws IOException {
+      double[] sent = values;
+      if (maxSamples > 0 && values.length > maxSamples) {
+        sent = new double[maxSamples];
+        for (int i = 0; i < maxSamples; i++) {
+          // the middle value of each of maxSamples equal ranges of ranks
+          sent[i] = values[(int) ((2L * i + 1) * values.length / (2L * maxSamples))];
+        }
+        sampleRate *= (double) maxSamples / values.length;
+      }
+      valuesSent.inc(sent.length);
+      packer.values(name.getMetric(), type.code, sent, sampleRate, name.getTags(), multiValue);
+    }
+
+    /**
+     * Each value on its own line, with a sample rate of one over its count.
+     */
+    public void addDistribution(SeriesName name, double[] values, long[] counts)
+        throws IOException {
+      valuesSent.inc(values.length);
+      packer.weightedValues(name.getMetric(), type.code, values, counts, name.getTags());
+    }
+  }
 }
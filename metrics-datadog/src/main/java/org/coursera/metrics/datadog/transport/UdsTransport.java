@@ -0,0 +1,272 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pushes metrics in the dogstatsd format over a unix domain socket to an agent on the same
+ * host, which avoids the loopback UDP stack and the packet loss that comes with it under burst.
+ * <p/>
+ * The lines of a report are packed into packets of at most {@code maxPacketSize} bytes, like
+ * {@link UdpTransport} with {@link UdpTransport.Builder#withMaxPacketSize(int)}. As the JDK only
+ * supports stream unix sockets, each packet is written with the 4 byte little-endian length
+ * prefix the agent expects on a stream socket. The connection is opened on the first report and
+ * reopened on the next one after a write fails, e.g. because the agent restarted. Overlapping
+ * reports share the connection, and each packet is written whole. Counters are
+ * turned into increments with a {@link CounterDeltaTable}, as in {@link UdpTransport}.
+ * <p/>
+ * The socket path has no default and must point at the agent's {@code dogstatsd_stream_socket}.
+ * The agent's usual {@code dogstatsd_socket} is a datagram socket and refuses stream connections.
+ * <p/>
+ * Unix domain socket channels require Java 16 or later. They are looked up reflectively so that
+ * the rest of the library keeps running on older JVMs.
+ *
+ * @see <a href="http://docs.datadoghq.com/developers/dogstatsd/unix_socket">dogstatsd over UDS</a>
+ */
+public class UdsTransport implements Transport, Transport.CounterTracking, MetricSet {
+
+  private static final Logger LOG = LoggerFactory.getLogger(UdsTransport.class);
+
+  private final String socketPath;
+  private final SocketAddress address;
+  private final String prefix;
+  private final int maxPacketSize;
+  private final CounterDeltaTable counterDeltas;
+  private final Counter packetsSent = new Counter();
+  private final Counter bytesSent = new Counter();
+  private final Counter packetsFailed = new Counter();
+  private SocketChannel channel;
+
+  private UdsTransport(Builder builder) {
+    this.socketPath = builder.socketPath;
+    this.address = UnixSockets.address(builder.socketPath);
+    this.prefix = builder.prefix;
+    this.maxPacketSize = builder.maxPacketSize;
+    this.counterDeltas = new CounterDeltaTable(builder.counterExpiry, builder.maxTrackedCounters);
+  }
+
+  public static class Builder {
+    String socketPath = null;
+    String prefix = null;
+    int maxPacketSize = 8192;
+    int counterExpiry = 10;
+    int maxTrackedCounters = 100000;
+
+    /**
+     * Sets the path of the agent's {@code dogstatsd_stream_socket}. Required.
+     */
+    public Builder withSocketPath(String socketPath) {
+      this.socketPath = socketPath;
+      return this;
+    }
+
+    public Builder withPrefix(String prefix) {
+      this.prefix = prefix;
+      return this;
+    }
+
+    /**
+     * Pack the lines of a report into packets of at most this many bytes. Defaults to 8192, the
+     * agent's default buffer size for unix sockets.
+     */
+    public Builder withMaxPacketSize(int maxPacketSize) {
+      if (maxPacketSize < 1) {
+        throw new IllegalArgumentException("maxPacketSize must be positive: " + maxPacketSize);
+      }
+      this.maxPacketSize = maxPacketSize;
+      return this;
+    }
+
+    /**
+     * Forget the last count of a counter series that has not been reported for this many
+     * reports. Defaults to 10.
+     */
+    public Builder withCounterExpiry(int reports) {
+      this.counterExpiry = reports;
+      return this;
+    }
+
+    /**
+     * Bound the number of counter series whose last count is kept. Defaults to 100000.
+     */
+    public Builder withMaxTrackedCounters(int maxTrackedCounters) {
+      this.maxTrackedCounters = maxTrackedCounters;
+      return this;
+    }
+
+    public UdsTransport build() {
+      if (socketPath == null || socketPath.length() == 0) {
+        throw new IllegalArgumentException(
+            "socketPath is required and must point at the agent's dogstatsd_stream_socket");
+      }
+      return new UdsTransport(this);
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  public int getCounterExpiry() {
+    return counterDeltas.getMaxMissedFlushes();
+  }
+
+  public Map<String, Metric> getMetrics() {
+    Map<String, Metric> metrics = new HashMap<String, Metric>(counterDeltas.getMetrics());
+    metrics.put("packets.sent", packetsSent);
+    metrics.put("bytes.sent", bytesSent);
+    metrics.put("packets.failed", packetsFailed);
+    return Collections.unmodifiableMap(metrics);
+  }
+
+  public synchronized Request prepare() throws IOException {
+    counterDeltas.startFlush();
+    if (channel == null) {
+      try {
+        channel = UnixSockets.connect(address);
+      } catch (IOException e) {
+        IOException failed = new IOException("Cannot connect to dogstatsd_stream_socket " +
+            socketPath + ": " + e.getMessage());
+        failed.initCause(e);
+        throw failed;
+      }
+    }
+    final SocketChannel connected = channel;
+    return new UdpTransport.BatchingDogstatsdRequest(new DogstatsdPacker(prefix, maxPacketSize) {
+      private final ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+      protected void write(ByteBuffer packet) throws IOException {
+        int bytes = packet.remaining();
+        try {
+          writeFrame(connected, header, packet);
+        } catch (IOException e) {
+          packetsFailed.inc();
+          disconnect(connected);
+          throw e;
+        }
+        packetsSent.inc();
+        bytesSent.inc(bytes);
+      }
+    }, counterDeltas);
+  }
+
+  private synchronized void disconnect(SocketChannel failed) {
+    if (channel == failed) {
+      channel = null;
+    }
+    try {
+      failed.close();
+    } catch (IOException e) {
+      LOG.debug("Error closing dogstatsd socket", e);
+    }
+  }
+
+  /**
+   * Write one length-prefixed packet, consuming the remaining bytes of {@code packet}. The
+   * header buffer must not be shared between threads. Frames are written whole while holding
+   * the channel, so that the frames of overlapping reports never interleave on the stream.
+   */
+  static void writeFrame(GatheringByteChannel channel, ByteBuffer header, ByteBuffer packet)
+      throws IOException {
+    header.clear();
+    header.putInt(packet.remaining());
+    header.flip();
+    ByteBuffer[] frame = new ByteBuffer[] { header, packet };
+    synchronized (channel) {
+      while (header.hasRemaining() || packet.hasRemaining()) {
+        channel.write(frame);
+      }
+    }
+  }
+
+  /**
+   * Reflective access to the Java 16 unix domain socket API.
+   */
+  static class UnixSockets {
+    private static final Method ADDRESS_OF;
+    private static final Method OPEN;
+    private static final Object UNIX;
+
+    static {
+      Method addressOf = null;
+      Method open = null;
+      Object unix = null;
+      try {
+        addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+        Class<?> family = Class.forName("java.net.ProtocolFamily");
+        open = SocketChannel.class.getMethod("open", family);
+        unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+      } catch (Exception e) {
+        addressOf = null;
+      }
+      ADDRESS_OF = addressOf;
+      OPEN = open;
+      UNIX = unix;
+    }
+
+    static boolean isSupported() {
+      return ADDRESS_OF != null;
+    }
+
+    static SocketAddress address(String path) {
+      if (!isSupported()) {
+        throw new UnsupportedOperationException(
+            "Unix domain sockets require Java 16 or later, running " +
+                System.getProperty("java.version"));
+      }
+      return (SocketAddress) invoke(ADDRESS_OF, path);
+    }
+
+    static SocketChannel connect(SocketAddress address) throws IOException {
+      SocketChannel channel;
+      try {
+        channel = (SocketChannel) OPEN.invoke(null, UNIX);
+      } catch (InvocationTargetException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+      try {
+        channel.connect(address);
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+      return channel;
+    }
+
+    private static Object invoke(Method method, Object arg) {
+      try {
+        return method.invoke(null, arg);
+      } catch (InvocationTargetException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package org.coursera.metrics.serializer;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+
+/**
+ * Serialize datadog time series object into json by writing each field with the generator
+ * primitives, instead of handing the series to an ObjectMapper. This skips bean
+ * introspection and the lists and boxed numbers built by {@link DatadogSeries#getPoints()},
+ * while producing the same document as {@link JsonSerializer}.
+ */
+public class DirectJsonSerializer extends JsonSerializer {
+
+  public DirectJsonSerializer() {
+  }
+
+  public DirectJsonSerializer(OutputStream outputStream) {
+    super(outputStream);
+  }
+
+  @Override
+  public void appendGauge(DatadogGauge gauge) throws IOException {
+    appendSeries(gauge, gauge.getType());
+  }
+
+  @Override
+  public void appendCounter(DatadogCounter counter) throws IOException {
+    appendSeries(counter, counter.getType());
+  }
+
+  private void appendSeries(DatadogSeries<?> series, String type) throws IOException {
+    jsonOut.writeStartObject();
+    jsonOut.writeStringField("metric", series.getMetric());
+
+    jsonOut.writeArrayFieldStart("points");
+    jsonOut.writeStartArray();
+    jsonOut.writeNumber(series.getEpoch());
+    writeValue(series.getValue());
+    jsonOut.writeEndArray();
+    jsonOut.writeEndArray();
+
+    jsonOut.writeStringField("type", type);
+    if (series.getInterval() != null) {
+      jsonOut.writeNumberField("interval", series.getInterval());
+    }
+    if (series.getHost() != null) {
+      jsonOut.writeStringField("host", series.getHost());
+    }
+
+    jsonOut.writeArrayFieldStart("tags");
+    List<String> tags = series.getTags();
+    for (int i = 0; i < tags.size(); i++) {
+      jsonOut.writeString(tags.get(i));
+    }
+    jsonOut.writeEndArray();
+    jsonOut.writeEndObject();
+  }
+
+  private void writeValue(Number value) throws IOException {
+    if (value == null) {
+      jsonOut.writeNull();
+    } else if (value instanceof Double) {
+      jsonOut.writeNumber(value.doubleValue());
+    } else if (value instanceof Float) {
+      jsonOut.writeNumber(value.floatValue());
+    } else if (value instanceof Long || value instanceof Integer
+        || value instanceof Short || value instanceof Byte) {
+      jsonOut.writeNumber(value.longValue());
+    } else if (value instanceof BigDecimal) {
+      jsonOut.writeNumber((BigDecimal) value);
+    } else if (value instanceof BigInteger) {
+      jsonOut.writeNumber((BigInteger) value);
+    } else {
+      jsonOut.writeNumber(value.doubleValue());
+    }
+  }
+}
@@ -10,6 +10,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 
 /**
@@ -22,11 +23,29 @@ public class JsonSerializer implements Serializer {
   private static final ObjectMapper MAPPER = new ObjectMapper(JSON_FACTORY);
   private static final Logger LOG = LoggerFactory.getLogger(JsonSerializer.class);
 
-  private JsonGenerator jsonOut;
-  private ByteArrayOutputStream outputStream;
+  protected JsonGenerator jsonOut;
+  private OutputStream outputStream;
+  private ByteArrayOutputStream buffer;
+
+  /**
+   * Buffer the serialized series in memory, to be read back with {@link #getAsString()}.
+   */
+  public JsonSerializer() {
+  }
+
+  /**
+   * Write the serialized series incrementally to the given stream instead of buffering them.
+   * The stream is closed by {@link #endObject()}.
+   */
+  public JsonSerializer(OutputStream outputStream) {
+    this.outputStream = outputStream;
+  }
 
   public void startObject() throws IOException {
-    outputStream = new ByteArrayOutputStream(2048);
+    if (outputStream == null) {
+      buffer = new ByteArrayOutputStream(2048);
+      outputStream = buffer;
+    }
     jsonOut = JSON_FACTORY.createGenerator(outputStream);
     jsonOut.writeStartObject();
     jsonOut.writeArrayFieldStart("series");
@@ -40,14 +59,23 @@ public class JsonSerializer implements Serializer {
     MAPPER.writeValue(jsonOut, counter);
   }
 
+  /**
+   * Flush whatever the generator has buffered to the underlying stream.
+   */
+  public void flush() throws IOException {
+    jsonOut.flush();
+  }
+
   public void endObject() throws IOException {
     jsonOut.writeEndArray();
     jsonOut.writeEndObject();
-    jsonOut.flush();
-    outputStream.close();
+    jsonOut.close();
   }
 
   public String getAsString() throws UnsupportedEncodingException {
-    return outputStream.toString("UTF-8");
+    if (buffer == null) {
+      throw new IllegalStateException("Series were written to an external stream");
+    }
+    return buffer.toString("UTF-8");
   }
 }
@@ -34,7 +34,8 @@ public interface Serializer {
   public void endObject() throws IOException;
 
   /**
-   * Get datadog time series object serialized as a string
+   * Get datadog time series object serialized as a string. Only available for serializers
+   * that buffer their output in memory.
    */
   public String getAsString() throws IOException;
 }
@@ -14,22 +14,37 @@ import com.codahale.metrics.Timer;
 import org.coursera.metrics.datadog.DatadogReporter.Expansion;
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.coursera.metrics.datadog.transport.HttpTransport;
 import org.coursera.metrics.datadog.transport.Transport;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 import org.mockito.internal.matchers.Any;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
 public class DatadogReporterTest {
@@ -349,6 +364,339 @@ public class DatadogReporterTest {
     verify(request).addCounter(new DatadogCounter("counter", 100L, timestamp, HOST, dynamicTags));
   }
 
+  @Test
+  public void reportsChangedTagsOfCachedNames() throws Exception {
+    when(callback.getTags(anyString())).thenReturn(Arrays.asList("status:active"));
+
+    final Counter counter = mock(Counter.class);
+    when(counter.getCount()).thenReturn(100L);
+
+    reporterWithCallback.report(this.<Gauge>map(),
+            this.<Counter>map("counter[id:1]", counter),
+            this.<Histogram>map(),
+            this.<Meter>map(),
+            this.<Timer>map());
+    when(callback.getTags(anyString())).thenReturn(Arrays.asList("status:idle"));
+    reporterWithCallback.report(this.<Gauge>map(),
+            this.<Counter>map("counter[id:1]", counter),
+            this.<Histogram>map(),
+            this.<Meter>map(),
+            this.<Timer>map());
+
+    verify(request).addCounter(new DatadogCounter("counter", 100L, timestamp, HOST,
+        Arrays.asList("id:1", "status:active")));
+    verify(request).addCounter(new DatadogCounter("counter", 100L, timestamp, HOST,
+        Arrays.asList("id:1", "status:idle")));
+  }
+
+  @Test
+  public void dropsCachedNamesOfRemovedMetrics() throws Exception {
+    metricsRegistry.counter("counter").inc();
+    metricsRegistry.timer("timer").update(1, TimeUnit.SECONDS);
+    Gauge cached = (Gauge) reporter.getMetrics().get("names.cached");
+
+    reporter.report();
+    assertEquals(2, cached.getValue());
+
+    metricsRegistry.remove("timer");
+    assertEquals(1, cached.getValue());
+
+    reporter.stop();
+    metricsRegistry.remove("counter");
+    assertEquals(1, cached.getValue());
+  }
+
+  @Test
+  public void registersSelfMetrics() throws Exception {
+    MetricRegistry selfMetrics = new MetricRegistry();
+    DatadogReporter instrumented = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withSelfMetrics(selfMetrics)
+        .withSelfMetricsNamespace("dd")
+        .build();
+    metricsRegistry.counter("counter").inc();
+    metricsRegistry.meter("meter").mark();
+
+    instrumented.report();
+    doThrow(new IOException("boom")).when(request).send();
+    instrumented.report();
+
+    assertEquals(2, selfMetrics.getTimers().get("dd.report.snapshot").getCount());
+    assertEquals(1, selfMetrics.getTimers().get("dd.report.duration").getCount());
+    assertEquals(1, selfMetrics.getTimers().get("dd.report.send").getCount());
+    assertEquals(6.0, selfMetrics.getHistograms().get("dd.report.series").getSnapshot().getMax(), 0.0);
+    assertEquals(1, selfMetrics.getCounters().get("dd.report.errors").getCount());
+    assertEquals(2, selfMetrics.getGauges().get("dd.names.cached").getValue());
+
+    instrumented.stop();
+    assertTrue(selfMetrics.getMetrics().isEmpty());
+  }
+
+  @Test
+  public void suppressesUnchangedSeriesUntilHeartbeat() throws Exception {
+    DatadogReporter suppressing = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withChangeSuppression(3)
+        .build();
+    Counter counter = metricsRegistry.counter("counter");
+    metricsRegistry.register("gauge", new Gauge<Integer>() {
+      public Integer getValue() {
+        return 1;
+      }
+    });
+
+    counter.inc();
+    suppressing.report();
+    suppressing.report();
+    counter.inc();
+    suppressing.report();
+    suppressing.report();
+
+    verify(request, times(2)).addGauge(new DatadogGauge("gauge", 1, timestamp, HOST, null));
+    verify(request).addCounter(new DatadogCounter("counter", 1L, timestamp, HOST, null));
+    verify(request).addCounter(new DatadogCounter("counter", 2L, timestamp, HOST, null));
+    verify(request, times(4)).send();
+    assertEquals(4, ((Counter) suppressing.getMetrics().get("series.suppressed")).getCount());
+  }
+
+  @Test
+  public void sendsSeriesAgainAfterFailedReport() throws Exception {
+    DatadogReporter suppressing = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withChangeSuppression(3)
+        .build();
+    metricsRegistry.register("gauge", new Gauge<Integer>() {
+      public Integer getValue() {
+        return 1;
+      }
+    });
+
+    doThrow(new IOException("agent down")).doNothing().when(request).send();
+    suppressing.report();
+    suppressing.report();
+    suppressing.report();
+
+    // the first send failed, so the second report sends the gauge again, and the third skips it
+    verify(request, times(2)).addGauge(new DatadogGauge("gauge", 1, timestamp, HOST, null));
+    verify(request, times(3)).send();
+    assertEquals(1, ((Counter) suppressing.getMetrics().get("series.suppressed")).getCount());
+  }
+
+  @Test
+  public void abortsRequestWhenReportFailsBeforeSend() throws Exception {
+    Transport.AbortableRequest abortable = mock(Transport.AbortableRequest.class);
+    when(transport.prepare()).thenReturn(abortable);
+    doThrow(new IOException("encoding failed")).when(abortable).addGauge(any(DatadogGauge.class));
+    metricsRegistry.register("gauge", new Gauge<Integer>() {
+      public Integer getValue() {
+        return 1;
+      }
+    });
+
+    reporter.report();
+
+    verify(abortable).abort();
+    verify(abortable, never()).send();
+  }
+
+  @Test
+  public void lowersHeartbeatToCounterExpiryOfTransport() throws Exception {
+    Transport tracking = mock(Transport.class,
+        withSettings().extraInterfaces(Transport.CounterTracking.class));
+    when(tracking.prepare()).thenReturn(request);
+    when(((Transport.CounterTracking) tracking).getCounterExpiry()).thenReturn(2);
+    DatadogReporter suppressing = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(tracking)
+        .withChangeSuppression(5)
+        .build();
+    metricsRegistry.counter("counter").inc();
+
+    for (int i = 0; i < 6; i++) {
+      suppressing.report();
+    }
+
+    // sent every 2 reports, so that the transport never forgets its last count
+    verify(request, times(3)).addCounter(new DatadogCounter("counter", 1L, timestamp, HOST, null));
+  }
+
+  @Test
+  public void parallelReportKeepsSeriesOrder() throws Exception {
+    for (int i = 0; i < 300; i++) {
+      metricsRegistry.counter("counter" + i).inc(i);
+      metricsRegistry.histogram("histogram" + i).update(i);
+      final int value = i;
+      metricsRegistry.register("gauge" + i, new Gauge<Integer>() {
+        public Integer getValue() {
+          return value;
+        }
+      });
+    }
+    List<Object> sequential = new ArrayList<Object>();
+    List<Object> parallel = new ArrayList<Object>();
+
+    DatadogReporter.forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(recordingTransport(sequential))
+        .build()
+        .report();
+    DatadogReporter parallelReporter = DatadogReporter.forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(recordingTransport(parallel))
+        .withParallelism(4)
+        .build();
+    parallelReporter.report();
+    parallelReporter.stop();
+
+    assertEquals(300 * 13, sequential.size());
+    assertEquals(sequential, parallel);
+  }
+
+  private Transport recordingTransport(final List<Object> series) {
+    return new Transport() {
+      public Request prepare() {
+        return new Request() {
+          public void addGauge(DatadogGauge gauge) {
+            series.add(gauge);
+          }
+
+          public void addCounter(DatadogCounter counter) {
+            series.add(counter);
+          }
+
+          public void send() {
+          }
+        };
+      }
+
+      public void close() {
+      }
+    };
+  }
+
+  @Test
+  public void sendsLastValueOfGaugeThatTimesOut() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger reads = new AtomicInteger();
+    metricsRegistry.register("slow", new Gauge<Integer>() {
+      public Integer getValue() {
+        if (reads.incrementAndGet() == 2) {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return reads.get();
+      }
+    });
+    metricsRegistry.register("fast", new Gauge<Integer>() {
+      public Integer getValue() {
+        return 7;
+      }
+    });
+    DatadogReporter reporterWithTimeout = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withGaugeTimeout(50, TimeUnit.MILLISECONDS)
+        .build();
+
+    reporterWithTimeout.report();
+    reporterWithTimeout.report();
+    reporterWithTimeout.report();
+
+    verify(request, times(3)).addGauge(new DatadogGauge("slow", 1, timestamp, HOST, null));
+    verify(request, times(3)).addGauge(new DatadogGauge("fast", 7, timestamp, HOST, null));
+    assertEquals(2, reads.get());
+    Map<String, Metric> metrics = reporterWithTimeout.getMetrics();
+    assertEquals(1, ((Counter) metrics.get("gauges.timeouts")).getCount());
+    assertEquals(2, ((Counter) metrics.get("gauges.stale")).getCount());
+    assertEquals("slow", ((Map<?, ?>) ((Gauge) metrics.get("gauges.slowest")).getValue())
+        .keySet().iterator().next());
+    // still stuck, so at least the budget so far
+    assertTrue((Double) ((Gauge) metrics.get("gauges.slowest.millis")).getValue() >= 50);
+
+    release.countDown();
+    reporterWithTimeout.stop();
+  }
+
+  @Test
+  public void fallsBackRightAwayWhenEveryGaugeThreadIsStuck() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    for (int i = 0; i < 6; i++) {
+      metricsRegistry.register("slow" + i, new Gauge<Integer>() {
+        public Integer getValue() {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return 1;
+        }
+      });
+    }
+    DatadogReporter reporterWithTimeout = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withGaugeTimeout(200, TimeUnit.MILLISECONDS)
+        .withGaugeThreads(2)
+        .build();
+
+    long start = System.nanoTime();
+    reporterWithTimeout.report();
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    // two budgets for the gauges that got a worker, none for those queued behind them
+    assertTrue("report took " + elapsed + " ms", elapsed < 600);
+    Map<String, Metric> metrics = reporterWithTimeout.getMetrics();
+    assertEquals(2, ((Counter) metrics.get("gauges.timeouts")).getCount());
+    assertEquals(4, ((Counter) metrics.get("gauges.saturated")).getCount());
+    assertEquals(6, ((Counter) metrics.get("gauges.skipped")).getCount());
+
+    release.countDown();
+    reporterWithTimeout.stop();
+  }
+
+  @Test
+  public void refusesToStartWithPeriodWithinRetryBudget() throws Exception {
+    HttpTransport httpTransport = new HttpTransport.Builder()
+        .withApiKey("key")
+        .withMaxRetries(2)
+        .withRetryBudget(5000)
+        .build();
+    DatadogReporter retryingReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withTransport(httpTransport)
+        .build();
+    try {
+      retryingReporter.start(5, TimeUnit.SECONDS);
+      fail("Expected the period to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    retryingReporter.start(10, TimeUnit.SECONDS);
+    retryingReporter.stop();
+    httpTransport.close();
+  }
+
   @Test
   public void reportsWithFilter() throws Exception {
     Counter counter = metricsRegistry.counter("my.metric.counter");
@@ -438,6 +786,85 @@ public class DatadogReporterTest {
   }
 
 
+  @Test
+  public void reportsExpansionsPickedPerMetric() throws Exception {
+    ExpansionPolicy policy = spy(new PatternExpansionPolicy.Builder(EnumSet.of(Expansion.COUNT))
+        .withRule("^api\\.", EnumSet.of(Expansion.P99))
+        .build());
+    DatadogReporter reporterWithPolicy = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withExpansionPolicy(policy)
+        .build();
+    metricsRegistry.timer("api.checkout").update(5, TimeUnit.MILLISECONDS);
+    metricsRegistry.timer("internal.job").update(5, TimeUnit.MILLISECONDS);
+
+    reporterWithPolicy.report();
+    reporterWithPolicy.report();
+
+    verify(request, times(2)).addGauge(new DatadogGauge("api.checkout.p99", 5.0, timestamp, HOST, null));
+    verify(request, times(2)).addCounter(new DatadogCounter("internal.job.count", 1L, timestamp, HOST, null));
+    verify(request, times(2)).send();
+    verifyNoMoreInteractions(request);
+    verify(policy).getExpansions("api.checkout");
+    verify(policy).getExpansions("internal.job");
+  }
+
+  @Test
+  public void computesOnlyRequestedStatistics() throws Exception {
+    DatadogReporter reporterWithExpansions = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withExpansions(EnumSet.of(Expansion.MAX, Expansion.P99))
+        .build();
+
+    final Histogram histogram = mock(Histogram.class);
+    final Snapshot snapshot = mock(Snapshot.class);
+    when(histogram.getSnapshot()).thenReturn(snapshot);
+    when(snapshot.getMax()).thenReturn(10L);
+    when(snapshot.get99thPercentile()).thenReturn(9.0);
+
+    reporterWithExpansions.report(this.<Gauge>map(),
+        this.<Counter>map(),
+        map("histogram", histogram),
+        this.<Meter>map(),
+        this.<Timer>map());
+
+    verify(request).addGauge(new DatadogGauge("histogram.max", 10L, timestamp, HOST, null));
+    verify(request).addGauge(new DatadogGauge("histogram.p99", 9.0, timestamp, HOST, null));
+    verify(snapshot).getMax();
+    verify(snapshot).get99thPercentile();
+    verifyNoMoreInteractions(snapshot);
+  }
+
+  @Test
+  public void readsOnlyRequestedRates() throws Exception {
+    DatadogReporter reporterWithExpansions = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTransport(transport)
+        .withExpansions(Expansion.ALL_BUT_RATES)
+        .build();
+
+    final Meter meter = mock(Meter.class);
+    when(meter.getCount()).thenReturn(3L);
+
+    reporterWithExpansions.report(this.<Gauge>map(),
+        this.<Counter>map(),
+        this.<Histogram>map(),
+        map("meter", meter),
+        this.<Timer>map());
+
+    verify(request).addCounter(new DatadogCounter("meter.count", 3L, timestamp, HOST, null));
+    verify(meter).getCount();
+    verifyNoMoreInteractions(meter);
+  }
+
   @Test
   public void reportsWithExpansions() throws Exception {
     DatadogReporter reporterWithExpansions = DatadogReporter
@@ -482,6 +909,148 @@ public class DatadogReporterTest {
     verifyNoMoreInteractions(transport, request);
   }
 
+  @Test
+  public void reportsTimerValuesAsDistribution() throws Exception {
+    final Transport distributionTransport = mock(Transport.class);
+    final Transport.DistributionRequest distributionRequest =
+        mock(Transport.DistributionRequest.class);
+    when(distributionTransport.prepare()).thenReturn(distributionRequest);
+    final DatadogReporter distributionReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withTags(tags)
+        .convertRatesTo(TimeUnit.SECONDS)
+        .convertDurationsTo(TimeUnit.MILLISECONDS)
+        .withTransport(distributionTransport)
+        .build();
+
+    final Timer timer = mock(Timer.class);
+    when(timer.getCount()).thenReturn(2L);
+    when(timer.getMeanRate()).thenReturn(2.0);
+    when(timer.getOneMinuteRate()).thenReturn(3.0);
+    when(timer.getFiveMinuteRate()).thenReturn(4.0);
+    when(timer.getFifteenMinuteRate()).thenReturn(5.0);
+    final Snapshot snapshot = mock(Snapshot.class);
+    when(snapshot.getValues()).thenReturn(new long[] {
+        TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(250) });
+    when(timer.getSnapshot()).thenReturn(snapshot);
+
+    distributionReporter.report(this.<Gauge>map(),
+            this.<Counter>map(),
+            this.<Histogram>map(),
+            this.<Meter>map(),
+            map("timer", timer));
+
+    final ArgumentCaptor<double[]> values = ArgumentCaptor.forClass(double[].class);
+    final InOrder inOrder = inOrder(distributionRequest);
+    inOrder.verify(distributionRequest).addDistribution(
+        eq(SeriesName.parse("timer").withTags(tags)), values.capture(), eq(1.0));
+    inOrder.verify(distributionRequest).addCounter(new DatadogCounter("timer.count", 2L, timestamp, HOST, tags));
+    inOrder.verify(distributionRequest).addGauge(new DatadogGauge("timer.1MinuteRate", 3.0, timestamp, HOST, tags));
+    inOrder.verify(distributionRequest).addGauge(new DatadogGauge("timer.5MinuteRate", 4.0, timestamp, HOST, tags));
+    inOrder.verify(distributionRequest).addGauge(new DatadogGauge("timer.15MinuteRate", 5.0, timestamp, HOST, tags));
+    inOrder.verify(distributionRequest).addGauge(new DatadogGauge("timer.meanRate", 2.0, timestamp, HOST, tags));
+    inOrder.verify(distributionRequest).send();
+    verifyNoMoreInteractions(distributionRequest);
+    assertTrue(Arrays.equals(new double[] { 100.0, 250.0 }, values.getValue()));
+    verify(snapshot, never()).getMax();
+  }
+
+  @Test
+  public void weighsDistributionValuesByUpdatesSinceLastReport() throws Exception {
+    final Transport distributionTransport = mock(Transport.class);
+    final Transport.DistributionRequest distributionRequest =
+        mock(Transport.DistributionRequest.class);
+    when(distributionTransport.prepare()).thenReturn(distributionRequest);
+    final DatadogReporter distributionReporter = DatadogReporter
+        .forRegistry(metricsRegistry)
+        .withHost(HOST)
+        .withClock(clock)
+        .withExpansions(EnumSet.of(Expansion.MEDIAN))
+        .withTransport(distributionTransport)
+        .build();
+
+    final Histogram histogram = mock(Histogram.class);
+    final Snapshot snapshot = mock(Snapshot.class);
+    when(snapshot.getValues()).thenReturn(new long[] { 1, 2, 3, 4 });
+    when(histogram.getSnapshot()).thenReturn(snapshot);
+    final SeriesName name = SeriesName.parse("histogram");
+
+    // the reservoir keeps 4 of the first 8 updates
+    when(histogram.getCount()).thenReturn(8L);
+    report(distributionReporter, histogram);
+    verify(distributionRequest).addDistribution(name, new double[] { 1, 2, 3, 4 }, 0.5);
+
+    // no update since, nothing is counted again
+    report(distributionReporter, histogram);
+    verify(distributionRequest, times(1)).addDistribution(any(SeriesName.class),
+        any(double[].class), anyDouble());
+
+    // 2 updates, the reservoir still holds 4 values
+    when(histogram.getCount()).thenReturn(10L);
+    report(distributionReporter, histogram);
+    verify(distributionRequest).addDistribution(name, new double[] { 2, 4 }, 1.0);
+  }
+
+  private void report(DatadogReporter reporter, Histogram histogram) {
+    reporter.report(this.<Gauge>map(),
+        this.<Counter>map(),
+        map("histogram", histogram),
+        this.<Meter>map(),
+        this.<Timer>map());
+  }
+
+  @Test
+  public void reportsQuantileSketchOfLastPeriod() throws Exception {
+    final QuantileSketch sketch = metricsRegistry.register("sketch", new QuantileSketch());
+    for (int i = 0; i < 4; i++) {
+      sketch.update(10);
+    }
+
+    reporter.report();
+    reporter.report();
+
+    final InOrder inOrder = inOrder(transport, request);
+    inOrder.verify(transport).prepare();
+    inOrder.verify(request).addCounter(new DatadogCounter("sketch.count", 4L, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.max", 10.0, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.mean", 10.0, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.min", 10.0, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.stddev", 0.0, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.median", 10.0, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.p75", 10.0, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.p95", 10.0, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.p98", 10.0, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.p99", 10.0, timestamp, HOST, tags));
+    inOrder.verify(request).addGauge(new DatadogGauge("sketch.p999", 10.0, timestamp, HOST, tags));
+    inOrder.verify(request).send();
+    // nothing recorded since, only the count
+    inOrder.verify(transport).prepare();
+    inOrder.verify(request).addCounter(new DatadogCounter("sketch.count", 4L, timestamp, HOST, tags));
+    inOrder.verify(request).send();
+    verify(request, times(10)).addGauge(any(DatadogGauge.class));
+  }
+
+  @Test
+  public void reportsCountOfIntervalCounterSincePreviousReport() throws Exception {
+    final IntervalCounter counter = metricsRegistry.register("counter", new IntervalCounter());
+    counter.inc(5);
+    reporter.report();
+    counter.inc(2);
+    reporter.report();
+
+    final InOrder inOrder = inOrder(transport, request);
+    inOrder.verify(transport).prepare();
+    inOrder.verify(request).addCounter(
+        new DatadogCounter(SeriesName.parse("counter").withTags(tags), 5L, timestamp, HOST, true));
+    inOrder.verify(request).send();
+    inOrder.verify(transport).prepare();
+    inOrder.verify(request).addCounter(
+        new DatadogCounter(SeriesName.parse("counter").withTags(tags), 2L, timestamp, HOST, true));
+    inOrder.verify(request).send();
+  }
+
   private class NameMetricFilter implements MetricFilter {
     private final String include;
 
@@ -0,0 +1,52 @@
+package org.coursera.metrics.datadog;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntervalCounterTest {
+
+  @Test
+  public void drainsCountSincePreviousDrain() throws Exception {
+    IntervalCounter counter = new IntervalCounter();
+    counter.inc(5);
+    counter.dec();
+
+    assertEquals(4, counter.drain());
+    assertEquals(0, counter.drain());
+    counter.inc();
+    assertEquals(1, counter.drain());
+    assertEquals(5, counter.getCount());
+  }
+
+  @Test
+  public void countsIncrementsFromManyThreads() throws Exception {
+    final IntervalCounter counter = new IntervalCounter();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 100000; i++) {
+            counter.inc();
+          }
+        }
+      });
+    }
+    long drained = 0;
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      drained += counter.drain();
+      thread.join();
+    }
+    drained += counter.drain();
+
+    assertEquals(800000, drained);
+    assertEquals(800000, counter.getCount());
+  }
+}
@@ -0,0 +1,53 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntervalMeterTest {
+  private final ManualClock clock = new ManualClock();
+
+  @Test
+  public void ratesOfSteadyMarksAreTheSteadyRate() throws Exception {
+    IntervalMeter interval = new IntervalMeter(clock);
+    Meter meter = new Meter(clock);
+    for (int second = 0; second < 60; second++) {
+      interval.mark(10);
+      meter.mark(10);
+      clock.tick += TimeUnit.SECONDS.toNanos(1);
+    }
+    clock.tick += 1;
+
+    // read once, the marks of the whole minute are spread over its ticks
+    assertEquals(10.0, interval.getOneMinuteRate(), 1e-9);
+    assertEquals(10.0, interval.getFiveMinuteRate(), 1e-9);
+    assertEquals(10.0, interval.getFifteenMinuteRate(), 1e-9);
+    assertEquals(meter.getMeanRate(), interval.getMeanRate(), 1e-9);
+    assertEquals(meter.getCount(), interval.getCount());
+  }
+
+  @Test
+  public void drainsMarksSincePreviousDrain() throws Exception {
+    IntervalMeter meter = new IntervalMeter(clock);
+    meter.mark();
+    meter.mark(2);
+
+    assertEquals(3, meter.drain());
+    meter.mark();
+    assertEquals(1, meter.drain());
+    assertEquals(4, meter.getCount());
+  }
+
+  private static class ManualClock extends Clock {
+    long tick;
+
+    @Override
+    public long getTick() {
+      return tick;
+    }
+  }
+}
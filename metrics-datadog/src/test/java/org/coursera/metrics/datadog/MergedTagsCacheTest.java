@@ -0,0 +1,53 @@
+package org.coursera.metrics.datadog;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class MergedTagsCacheTest {
+  private final List<String> staticTags = Arrays.asList("env:prod", "region:us-east-1");
+
+  @Test
+  public void returnsSameMergedTagsForEqualDynamicTags() throws Exception {
+    MergedTagsCache cache = new MergedTagsCache(staticTags, 10);
+
+    List<String> first = cache.get(new ArrayList<String>(Arrays.asList("status:active", "env:canary")));
+    List<String> second = cache.get(new ArrayList<String>(Arrays.asList("status:active", "env:canary")));
+
+    assertEquals(Arrays.asList("env:canary", "region:us-east-1", "status:active"), first);
+    assertSame(first, second);
+    assertSame("region:us-east-1".intern(), first.get(1));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void isNotFooledByCallbackReusingItsList() throws Exception {
+    MergedTagsCache cache = new MergedTagsCache(staticTags, 10);
+    List<String> dynamicTags = new ArrayList<String>(Arrays.asList("status:active"));
+
+    List<String> active = cache.get(dynamicTags);
+    dynamicTags.set(0, "status:idle");
+    List<String> idle = cache.get(dynamicTags);
+
+    assertEquals(Arrays.asList("env:prod", "region:us-east-1", "status:active"), active);
+    assertEquals(Arrays.asList("env:prod", "region:us-east-1", "status:idle"), idle);
+  }
+
+  @Test
+  public void stopsCachingPastMaxEntries() throws Exception {
+    MergedTagsCache cache = new MergedTagsCache(staticTags, 1);
+
+    cache.get(Arrays.asList("status:active"));
+    List<String> idle = cache.get(Arrays.asList("status:idle"));
+
+    assertEquals(1, cache.size());
+    assertNotSame(idle, cache.get(Arrays.asList("status:idle")));
+    assertEquals(idle, cache.get(Arrays.asList("status:idle")));
+  }
+}
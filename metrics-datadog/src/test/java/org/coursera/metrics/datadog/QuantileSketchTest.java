@@ -0,0 +1,95 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Snapshot;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantileSketchTest {
+
+  @Test
+  public void quantilesAreWithinRelativeAccuracy() throws Exception {
+    QuantileSketch sketch = new QuantileSketch(0.01, 2048);
+    for (int i = 1; i <= 10000; i++) {
+      sketch.update(i);
+    }
+
+    assertEquals(10000, sketch.getCount());
+    assertEquals(1.0, sketch.getMin(), 0);
+    assertEquals(10000.0, sketch.getMax(), 0);
+    assertEquals(5000.5, sketch.getMean(), 1e-9);
+    for (double q : new double[] { 0.5, 0.75, 0.95, 0.99, 0.999 }) {
+      double exact = 1 + q * 9999;
+      assertEquals(exact, sketch.getQuantile(q), exact * 0.01);
+    }
+    assertEquals(10000.0, sketch.getQuantile(1.0), 0);
+
+    Snapshot snapshot = sketch.getSnapshot();
+    assertEquals(1028, snapshot.size());
+    assertEquals(5000.0, snapshot.getMedian(), 5000 * 0.02);
+  }
+
+  @Test
+  public void mergesOverTheWire() throws Exception {
+    Random random = new Random(42);
+    QuantileSketch all = new QuantileSketch();
+    QuantileSketch first = new QuantileSketch();
+    QuantileSketch second = new QuantileSketch();
+    for (int i = 0; i < 5000; i++) {
+      double value = Math.exp(random.nextGaussian());
+      all.update(value);
+      (i % 2 == 0 ? first : second).update(value);
+    }
+
+    QuantileSketch merged = QuantileSketch.fromByteArray(first.toByteArray());
+    merged.merge(QuantileSketch.fromByteArray(second.toByteArray()));
+
+    assertEquals(all.size(), merged.size());
+    assertEquals(all.getMin(), merged.getMin(), 0);
+    assertEquals(all.getMax(), merged.getMax(), 0);
+    for (double q : new double[] { 0, 0.5, 0.9, 0.99, 1 }) {
+      assertEquals(all.getQuantile(q), merged.getQuantile(q), 0);
+    }
+    assertTrue(first.toByteArray().length < 1024);
+  }
+
+  @Test
+  public void mergesLowestBinsPastMaxBins() throws Exception {
+    QuantileSketch sketch = new QuantileSketch(0.01, 64);
+    for (int i = 0; i < 100; i++) {
+      sketch.update(Math.pow(1.02, i));
+    }
+
+    assertEquals(100, sketch.size());
+    assertTrue(sketch.bins() <= 64);
+    assertEquals(1.0, sketch.getQuantile(0), 0);
+    assertEquals(Math.pow(1.02, 99), sketch.getQuantile(1), 0);
+    assertEquals(Math.pow(1.02, 95), sketch.getQuantile(0.96), Math.pow(1.02, 95) * 0.01);
+    // the lowest values share the lowest bin
+    assertTrue(sketch.getQuantile(0.1) > Math.pow(1.02, 10) * 1.01);
+  }
+
+  @Test
+  public void drainKeepsTotalCount() throws Exception {
+    QuantileSketch sketch = new QuantileSketch();
+    sketch.update(0);
+    sketch.update(5);
+    sketch.update(-1);
+
+    QuantileSketch drained = sketch.drain();
+    sketch.update(7);
+
+    assertEquals(2, drained.size());
+    assertEquals(1, sketch.size());
+    assertEquals(3, sketch.getCount());
+    long[] counts = new long[drained.bins()];
+    double[] values = drained.values(counts);
+    assertEquals(0.0, values[0], 0);
+    assertEquals(5.0, values[1], 0.05);
+    assertEquals(1, counts[0]);
+    assertEquals(1, counts[1]);
+  }
+}
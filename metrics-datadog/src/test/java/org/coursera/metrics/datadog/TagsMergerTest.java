@@ -3,9 +3,12 @@ package org.coursera.metrics.datadog;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.TreeSet;
 
+import static org.junit.Assert.assertEquals;
+
 public class TagsMergerTest {
 
   @Test
@@ -41,4 +44,31 @@ public class TagsMergerTest {
     assert(new TreeSet<String>(TagsMerger.mergeTags(tags1, tags2)).equals(
             new TreeSet<String>(expected)));
   }
+
+  @Test
+  public void mergeTagsSortsByKeyAndDropsInvalidTags() throws Exception {
+    List<String> tags1 = new ArrayList<String>();
+    tags1.add("region:us-east-1");
+    tags1.add("invalid");
+    List<String> tags2 = new ArrayList<String>();
+    tags2.add("env:canary");
+    tags2.add("url:http://example.com");
+
+    assertEquals(Arrays.asList("env:canary", "region:us-east-1"),
+        TagsMerger.mergeTags(tags1, tags2));
+  }
+
+  @Test
+  public void mergeTagsIgnoresTrailingColons() throws Exception {
+    List<String> tags1 = new ArrayList<String>();
+    tags1.add("a:b:");
+    tags1.add("c:d::");
+    tags1.add("e:");
+    tags1.add("f::");
+    List<String> tags2 = new ArrayList<String>();
+    tags2.add("g:h");
+    tags2.add("i::j");
+
+    assertEquals(Arrays.asList("a:b", "c:d", "g:h"), TagsMerger.mergeTags(tags1, tags2));
+  }
 }
@@ -0,0 +1,66 @@
+package org.coursera.metrics.datadog.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class SeriesNameTest {
+  private static final Pattern TAG_PATTERN = Pattern.compile("([\\w\\.]+)\\[([\\w\\W]+)\\]");
+
+  @Test
+  public void parsesEmbeddedTags() {
+    SeriesName name = SeriesName.parse("jvm.gc[collector:g1,gen:old]");
+    assertEquals("jvm.gc", name.getMetric());
+    assertEquals(Arrays.asList("collector:g1", "gen:old"), name.getTags());
+  }
+
+  @Test
+  public void matchesRegexParsing() {
+    String[] names = {
+        "plain.name", "a[b]", "a[]", "a[]]", "[a:b]", "a.b[c:d,e:f]", "a-b[c]", "a [b]",
+        "-[x]a[b:c]", "a[b,]", "a[,b]", "a[,,]", "a[b,,c,,]", "x[a]y[b]z", "a[b]tail",
+        "pre fix.a[b][c]", "a[[b]]", "a.[b:c]", "éa[b]", "a[b\nc]", "a[b", "a]b[c"
+    };
+    for (String name : names) {
+      assertParsesLikeRegex(name);
+    }
+
+    Random random = new Random(42);
+    char[] alphabet = { 'a', 'Z', '0', '_', '.', '[', ']', ',', ':', '-', ' ' };
+    for (int i = 0; i < 20000; i++) {
+      char[] chars = new char[random.nextInt(12)];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = alphabet[random.nextInt(alphabet.length)];
+      }
+      assertParsesLikeRegex(new String(chars));
+    }
+  }
+
+  @Test
+  public void appendsTags() {
+    SeriesName name = SeriesName.parse("a[b:c]").withTags(Arrays.asList("env:prod"));
+    assertEquals(Arrays.asList("b:c", "env:prod"), name.getTags());
+    assertEquals(SeriesName.parse("a[b:c,env:prod]"), name);
+  }
+
+  private void assertParsesLikeRegex(String name) {
+    Matcher matcher = TAG_PATTERN.matcher(name);
+    String metric = name;
+    List<String> tags = Collections.emptyList();
+    if (matcher.find() && matcher.groupCount() == 2) {
+      metric = matcher.group(1);
+      tags = new ArrayList<String>(Arrays.asList(matcher.group(2).split("\\,")));
+    }
+    SeriesName parsed = SeriesName.parse(name);
+    assertEquals(name, metric, parsed.getMetric());
+    assertEquals(name, tags, parsed.getTags());
+  }
+}
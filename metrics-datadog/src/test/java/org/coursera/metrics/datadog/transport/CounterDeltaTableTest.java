@@ -0,0 +1,79 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CounterDeltaTableTest {
+  private static final List<String> TAGS = Arrays.asList("env:prod");
+
+  @Test
+  public void returnsIncrementsPerSeries() {
+    CounterDeltaTable table = new CounterDeltaTable(10, 100);
+    table.startFlush();
+    assertEquals(5, table.delta(name("counter", TAGS), 5));
+    assertEquals(3, table.delta(name("counter", null), 3));
+    table.startFlush();
+    assertEquals(7, table.delta(name("counter", Arrays.asList("env:prod")), 12));
+    assertEquals(0, table.delta(name("counter", null), 3));
+    table.startFlush();
+    assertEquals(0, table.delta(name("counter", TAGS), 2));
+    assertEquals(2, table.size());
+  }
+
+  @Test
+  public void evictsSeriesNotSeenForTooManyFlushes() {
+    CounterDeltaTable table = new CounterDeltaTable(2, 100);
+    table.startFlush();
+    table.delta(name("stale", TAGS), 5);
+    table.delta(name("live", TAGS), 5);
+    for (int i = 0; i < 3; i++) {
+      table.startFlush();
+      table.delta(name("live", TAGS), 5);
+    }
+    assertEquals(1, table.size());
+    assertEquals(1, table.getEvictions());
+    assertEquals(5, table.delta(name("stale", TAGS), 5));
+  }
+
+  @Test
+  public void evictsLeastRecentlySeenSeriesOverMaxSize() {
+    CounterDeltaTable table = new CounterDeltaTable(10, 2);
+    table.startFlush();
+    table.delta(name("a", TAGS), 1);
+    table.startFlush();
+    table.delta(name("b", TAGS), 1);
+    table.delta(name("c", TAGS), 1);
+    assertEquals(3, table.size());
+    table.startFlush();
+    assertEquals(2, table.size());
+    assertEquals(1, table.getEvictions());
+    assertEquals(0, table.delta(name("b", TAGS), 1));
+    // evicted for room, its count on return is its new baseline
+    assertEquals(0, table.delta(name("a", TAGS), 1));
+    assertEquals(2, table.delta(name("a", TAGS), 3));
+  }
+
+  @Test
+  public void forgetsSeriesEvictedForRoomOnceStale() {
+    CounterDeltaTable table = new CounterDeltaTable(2, 1);
+    table.startFlush();
+    table.delta(name("a", TAGS), 1);
+    table.startFlush();
+    table.delta(name("b", TAGS), 1);
+    table.startFlush();
+    for (int i = 0; i < 2; i++) {
+      table.startFlush();
+      table.delta(name("b", TAGS), 1);
+    }
+    assertEquals(5, table.delta(name("a", TAGS), 5));
+  }
+
+  private static SeriesName name(String metric, List<String> tags) {
+    return SeriesName.parse(metric).withTags(tags);
+  }
+}
@@ -0,0 +1,546 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.coursera.metrics.datadog.transport.HttpTransport.Compression;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpTransportTest {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final String BODY =
+      "{\"series\":[{\"metric\":\"test\",\"points\":[[1234,1]],\"type\":\"gauge\",\"tags\":[]}]}";
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private HttpServer server;
+  private final List<JsonNode> bodies = Collections.synchronizedList(new ArrayList<JsonNode>());
+  private final AtomicInteger requests = new AtomicInteger();
+  private final Set<InetSocketAddress> clients =
+      Collections.synchronizedSet(new HashSet<InetSocketAddress>());
+  private volatile int failRequest = -1;
+  private volatile int failFirstRequests = 0;
+  private volatile int failStatus = 500;
+  private volatile CountDownLatch blockResponses = new CountDownLatch(0);
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/v1/series", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        int request = requests.getAndIncrement();
+        clients.add(exchange.getRemoteAddress());
+        JsonNode body = MAPPER.readTree(exchange.getRequestBody());
+        int status = 202;
+        if (request == failRequest || request < failFirstRequests) {
+          status = failStatus;
+        } else {
+          bodies.add(body);
+        }
+        try {
+          blockResponses.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  @Test
+  public void postsWholeReportAsOneBatchByDefault() throws Exception {
+    HttpTransport transport = transport().build();
+    sendGauges(transport, 10);
+
+    assertEquals(1, bodies.size());
+    assertEquals(10, bodies.get(0).get("series").size());
+    assertEquals(1, ((Counter) transport.getMetrics().get("batches.succeeded")).getCount());
+    transport.close();
+  }
+
+  @Test
+  public void reusesPooledConnectionAcrossReports() throws Exception {
+    HttpTransport transport = transport().build();
+    sendGauges(transport, 1);
+    sendGauges(transport, 1);
+    sendGauges(transport, 1);
+
+    assertEquals(3, bodies.size());
+    assertEquals(1, clients.size());
+    transport.close();
+  }
+
+  @Test
+  public void splitsReportBySeriesCount() throws Exception {
+    HttpTransport transport = transport().withMaxSeriesPerBatch(3).build();
+    sendGauges(transport, 10);
+
+    assertEquals(4, bodies.size());
+    assertEquals(10, seriesIn(bodies));
+    for (JsonNode body : bodies) {
+      assertTrue(body.get("series").size() <= 3);
+    }
+    assertEquals(4, ((Counter) transport.getMetrics().get("batches.succeeded")).getCount());
+    transport.close();
+  }
+
+  @Test
+  public void splitsReportByEncodedSize() throws Exception {
+    HttpTransport transport = transport().withMaxBytesPerBatch(200).build();
+    sendGauges(transport, 10);
+
+    assertTrue(bodies.size() > 1);
+    assertEquals(10, seriesIn(bodies));
+    transport.close();
+  }
+
+  @Test
+  public void failedBatchDoesNotDropTheOthers() throws Exception {
+    failRequest = 0;
+    HttpTransport transport = transport().withMaxSeriesPerBatch(2).withBatchConcurrency(1).build();
+    try {
+      sendGauges(transport, 10);
+      fail("Expected the failed batch to be reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("1 of 5 batches failed"));
+    }
+
+    assertEquals(4, bodies.size());
+    assertEquals(8, seriesIn(bodies));
+    assertEquals(4, ((Counter) transport.getMetrics().get("batches.succeeded")).getCount());
+    assertEquals(1, ((Counter) transport.getMetrics().get("batches.failed")).getCount());
+    assertEquals(4, ((Counter) transport.getMetrics().get("responses.2xx")).getCount());
+    assertEquals(1, ((Counter) transport.getMetrics().get("responses.5xx")).getCount());
+    transport.close();
+  }
+
+  @Test
+  public void abortReleasesBatchesBuiltSoFar() throws Exception {
+    HttpTransport transport = transport()
+        .withMaxSeriesPerBatch(2)
+        .withCompression(Compression.DEFLATE, 6)
+        .build();
+    Transport.AbortableRequest request = (Transport.AbortableRequest) transport.prepare();
+    for (int i = 0; i < 3; i++) {
+      request.addGauge(new DatadogGauge("gauge" + i, i, 1234L, "host", null));
+    }
+    request.abort();
+    request.abort();
+
+    // the full batch and the one in progress, each once
+    assertEquals(2, transport.pooledBuffers());
+    assertEquals(0, requests.get());
+    transport.close();
+  }
+
+  @Test
+  public void countsEncodedAndSentBytes() throws Exception {
+    HttpTransport transport = transport().build();
+    sendGauges(transport, 100);
+
+    long encoded = ((Counter) transport.getMetrics().get("bytes.encoded")).getCount();
+    long sent = ((Counter) transport.getMetrics().get("bytes.sent")).getCount();
+    assertEquals(MAPPER.writeValueAsBytes(bodies.get(0)).length, encoded);
+    assertEquals(encoded, sent);
+    transport.close();
+  }
+
+  @Test
+  public void replaysSpooledBatchOnceIntakeRecovers() throws Exception {
+    failRequest = 0;
+    HttpTransport transport = transport()
+        .withSpool(folder.getRoot())
+        .withSpoolReplayInterval(10)
+        .build();
+    try {
+      sendGauges(transport, 3);
+      fail("Expected the failed batch to be reported");
+    } catch (IOException e) {
+      assertEquals("Datadog rejected series with status 500", e.getMessage());
+    }
+
+    for (int i = 0; i < 500 && bodies.isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    transport.close();
+    assertEquals(1, bodies.size());
+    assertEquals(3, bodies.get(0).get("series").size());
+    assertEquals(1234, bodies.get(0).get("series").get(0).get("points").get(0).get(0).asLong());
+    assertEquals(1, ((Counter) transport.getMetrics().get("spool.spooled")).getCount());
+    assertEquals(1, ((Counter) transport.getMetrics().get("spool.replayed")).getCount());
+    assertEquals(0, ((Gauge) transport.getMetrics().get("spool.pending")).getValue());
+  }
+
+  @Test
+  public void retriesRetryableFailures() throws Exception {
+    failFirstRequests = 2;
+    failStatus = 429;
+    HttpTransport transport = transport().withMaxRetries(3).withRetryBackoff(1, 5).build();
+    sendGauges(transport, 1);
+
+    assertEquals(3, requests.get());
+    assertEquals(1, bodies.size());
+    assertEquals(2, ((Counter) transport.getMetrics().get("retries")).getCount());
+    assertEquals(1, ((Counter) transport.getMetrics().get("batches.succeeded")).getCount());
+    transport.close();
+  }
+
+  @Test
+  public void doesNotRetryInvalidPayload() throws Exception {
+    failFirstRequests = 5;
+    failStatus = 400;
+    HttpTransport transport = transport().withMaxRetries(3).withRetryBackoff(1, 5).build();
+    try {
+      sendGauges(transport, 1);
+      fail("Expected the rejected batch to be reported");
+    } catch (IOException e) {
+      assertEquals("Datadog rejected series with status 400", e.getMessage());
+    }
+    assertEquals(1, requests.get());
+    transport.close();
+  }
+
+  @Test
+  public void stopsRetryingWhenBudgetIsSpent() throws Exception {
+    failFirstRequests = 100;
+    HttpTransport transport = transport()
+        .withMaxRetries(100)
+        .withRetryBackoff(100, 100)
+        .withRetryBudget(2000)
+        .build();
+    long start = System.currentTimeMillis();
+    try {
+      sendGauges(transport, 1);
+      fail("Expected the failed batch to be reported");
+    } catch (IOException e) {
+      long elapsed = System.currentTimeMillis() - start;
+      assertTrue("delivery took " + elapsed + " ms", elapsed < 4000);
+    }
+    // 100 retries wait 5 seconds on average, far beyond the budget, which leaves room for several
+    assertTrue("posted " + requests.get() + " times", requests.get() > 1);
+    assertTrue("posted " + requests.get() + " times", requests.get() < 100);
+    transport.close();
+  }
+
+  @Test
+  public void cutsAttemptTimeoutsToRetryBudget() throws Exception {
+    blockResponses = new CountDownLatch(1);
+    HttpTransport transport = transport()
+        .withSocketTimeout(5000)
+        .withMaxRetries(3)
+        .withRetryBackoff(20, 20)
+        .withRetryBudget(300)
+        .build();
+    long start = System.currentTimeMillis();
+    try {
+      sendGauges(transport, 1);
+      fail("Expected the timed out batch to be reported");
+    } catch (IOException e) {
+      long elapsed = System.currentTimeMillis() - start;
+      assertTrue("delivery took " + elapsed + " ms", elapsed < 2000);
+    }
+    blockResponses.countDown();
+    transport.close();
+  }
+
+  @Test
+  public void batchesOfReportShareRetryBudget() throws Exception {
+    blockResponses = new CountDownLatch(1);
+    HttpTransport transport = transport()
+        .withSocketTimeout(5000)
+        .withMaxRetries(3)
+        .withRetryBackoff(20, 20)
+        .withRetryBudget(300)
+        .withMaxSeriesPerBatch(1)
+        .withBatchConcurrency(1)
+        .build();
+    long start = System.currentTimeMillis();
+    try {
+      sendGauges(transport, 5);
+      fail("Expected the timed out batches to be reported");
+    } catch (IOException e) {
+      long elapsed = System.currentTimeMillis() - start;
+      // the batches queued behind the first one fail once the budget is spent, not 300 ms each
+      assertTrue("report took " + elapsed + " ms", elapsed < 1000);
+      assertTrue(e.getMessage().startsWith("5 of 5 batches failed"));
+    }
+    blockResponses.countDown();
+    transport.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNonPositiveRetryBudget() {
+    transport().withRetryBudget(0);
+  }
+
+  @Test
+  public void circuitBreakerSkipsPostsWhileOpen() throws Exception {
+    failFirstRequests = 2;
+    HttpTransport transport = transport().withCircuitBreaker(2, 100).build();
+    for (int i = 0; i < 3; i++) {
+      try {
+        sendGauges(transport, 1);
+        fail("Expected the batch to fail");
+      } catch (IOException e) {
+        // expected
+      }
+    }
+    assertEquals(2, requests.get());
+    assertEquals(1, ((Gauge) transport.getMetrics().get("circuit.state")).getValue());
+    assertEquals(1, ((Counter) transport.getMetrics().get("circuit.refused")).getCount());
+
+    Thread.sleep(150);
+    sendGauges(transport, 1);
+    assertEquals(1, bodies.size());
+    assertEquals(0, ((Gauge) transport.getMetrics().get("circuit.state")).getValue());
+    assertEquals(1L, ((Gauge) transport.getMetrics().get("circuit.opened")).getValue());
+    transport.close();
+  }
+
+  @Test
+  public void asyncSendDoesNotWaitForIntake() throws Exception {
+    blockResponses = new CountDownLatch(1);
+    HttpTransport transport = transport().withAsyncSend(2).build();
+    sendGauges(transport, 1, 0);
+    sendGauges(transport, 1, 1);
+
+    assertEquals(1, queuedAfterFirstRequest(transport));
+    blockResponses.countDown();
+    transport.close();
+    assertEquals(2, bodies.size());
+  }
+
+  @Test
+  public void asyncSendDropsNewestReportWhenFull() throws Exception {
+    blockResponses = new CountDownLatch(1);
+    HttpTransport transport = transport()
+        .withAsyncSend(1)
+        .withOverflowPolicy(HttpTransport.OverflowPolicy.DROP_NEWEST)
+        .build();
+    sendGauges(transport, 1, 0);
+    queuedAfterFirstRequest(transport);
+    sendGauges(transport, 1, 1);
+    sendGauges(transport, 1, 2);
+
+    blockResponses.countDown();
+    transport.close();
+    assertEquals(1, ((Counter) transport.getMetrics().get("queue.dropped")).getCount());
+    assertEquals(2, bodies.size());
+    assertEquals("gauge1", bodies.get(1).get("series").get(0).get("metric").asText());
+  }
+
+  @Test
+  public void asyncSendDropsOldestReportWhenFull() throws Exception {
+    blockResponses = new CountDownLatch(1);
+    HttpTransport transport = transport()
+        .withAsyncSend(1)
+        .withOverflowPolicy(HttpTransport.OverflowPolicy.DROP_OLDEST)
+        .build();
+    sendGauges(transport, 1, 0);
+    queuedAfterFirstRequest(transport);
+    sendGauges(transport, 1, 1);
+    sendGauges(transport, 1, 2);
+
+    blockResponses.countDown();
+    transport.close();
+    assertEquals(1, ((Counter) transport.getMetrics().get("queue.dropped")).getCount());
+    assertEquals(2, bodies.size());
+    assertEquals("gauge2", bodies.get(1).get("series").get(0).get("metric").asText());
+  }
+
+  @Test
+  public void gzipRoundTrip() throws Exception {
+    byte[] compressed = compress(Compression.GZIP, 9);
+    assertEquals(BODY, inflate(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  public void deflateRoundTrip() throws Exception {
+    byte[] compressed = compress(Compression.DEFLATE, 1);
+    assertEquals(BODY, inflate(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  public void noCompressionWritesThrough() throws Exception {
+    assertEquals(BODY, new String(compress(Compression.NONE, -1), "UTF-8"));
+  }
+
+  @Test
+  public void compressionShrinksRepetitivePayload() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append(BODY);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream compressed = Compression.GZIP.wrap(out, -1);
+    compressed.write(sb.toString().getBytes("UTF-8"));
+    compressed.close();
+    assertTrue(out.size() < sb.length() / 10);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInvalidCompressionLevel() {
+    new HttpTransport.Builder().withCompression(Compression.GZIP, 10);
+  }
+
+  @Test
+  public void sendsCumulativeCountersByDefault() throws Exception {
+    HttpTransport transport = transport().build();
+    sendCounter(transport, 5);
+    sendCounter(transport, 12);
+
+    JsonNode series = bodies.get(1).get("series").get(0);
+    assertEquals("counter", series.get("type").asText());
+    assertEquals(12, series.get("points").get(0).get(1).asLong());
+    assertNull(series.get("interval"));
+    transport.close();
+  }
+
+  @Test
+  public void sendsCountsSincePreviousReport() throws Exception {
+    HttpTransport transport = transport()
+        .withCounterType(HttpTransport.CounterType.COUNT).build();
+    sendCounter(transport, 5);
+    sendCounter(transport, 12);
+
+    JsonNode first = bodies.get(0).get("series").get(0);
+    JsonNode second = bodies.get(1).get("series").get(0);
+    assertEquals("count", first.get("type").asText());
+    assertEquals(5, first.get("points").get(0).get(1).asLong());
+    assertEquals("count", second.get("type").asText());
+    assertEquals(7, second.get("points").get(0).get(1).asLong());
+    assertEquals(1, second.get("interval").asLong());
+    assertEquals(1, ((Gauge) transport.getMetrics().get("counters.tracked")).getValue());
+    transport.close();
+  }
+
+  @Test
+  public void sendsRatesOverIntervalSincePreviousReport() throws Exception {
+    HttpTransport transport = transport()
+        .withCounterType(HttpTransport.CounterType.RATE).build();
+    sendCounter(transport, 10);
+    sendCounter(transport, 30);
+
+    JsonNode series = bodies.get(1).get("series").get(0);
+    assertEquals("rate", series.get("type").asText());
+    assertEquals(1, series.get("interval").asLong());
+    assertEquals(20.0, series.get("points").get(0).get(1).asDouble(), 0.0);
+    transport.close();
+  }
+
+  @Test
+  public void sendsDeltaCountersAsTheyAreInCountMode() throws Exception {
+    HttpTransport transport = transport()
+        .withCounterType(HttpTransport.CounterType.COUNT).build();
+    for (int i = 0; i < 2; i++) {
+      Transport.Request request = transport.prepare();
+      request.addCounter(new DatadogCounter(SeriesName.parse("hits"), 3L, 1234L, "host", true));
+      request.send();
+    }
+
+    JsonNode series = bodies.get(1).get("series").get(0);
+    assertEquals(3, series.get("points").get(0).get(1).asLong());
+    assertEquals(1, series.get("interval").asLong());
+    transport.close();
+  }
+
+  private HttpTransport.Builder transport() {
+    return new HttpTransport.Builder()
+        .withBaseUrl("http://localhost:" + server.getAddress().getPort() + "/api/v1")
+        .withApiKey("key");
+  }
+
+  private void sendGauges(HttpTransport transport, int count) throws Exception {
+    sendGauges(transport, count, 0);
+  }
+
+  private void sendGauges(HttpTransport transport, int count, int first) throws Exception {
+    Transport.Request request = transport.prepare();
+    for (int i = first; i < first + count; i++) {
+      request.addGauge(new DatadogGauge("gauge" + i, i, 1234L, "host", null));
+    }
+    request.send();
+  }
+
+  private void sendCounter(HttpTransport transport, long count) throws Exception {
+    Transport.Request request = transport.prepare();
+    request.addCounter(new DatadogCounter("hits", count, 1234L, "host", null));
+    request.send();
+  }
+
+  /**
+   * Wait until the I/O thread is stuck posting the first report, and return what is queued.
+   */
+  private int queuedAfterFirstRequest(HttpTransport transport) throws InterruptedException {
+    while (requests.get() == 0) {
+      Thread.sleep(5);
+    }
+    return (Integer) ((Gauge) transport.getMetrics().get("queue.size")).getValue();
+  }
+
+  private int seriesIn(List<JsonNode> bodies) {
+    int series = 0;
+    for (JsonNode body : bodies) {
+      series += body.get("series").size();
+    }
+    return series;
+  }
+
+  private byte[] compress(Compression compression, int level) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream compressed = compression.wrap(out, level);
+    compressed.write(BODY.getBytes("UTF-8"));
+    compressed.close();
+    return out.toByteArray();
+  }
+
+  private String inflate(InputStream in) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] chunk = new byte[512];
+    int read;
+    while ((read = in.read(chunk)) != -1) {
+      out.write(chunk, 0, read);
+    }
+    return out.toString("UTF-8");
+  }
+}
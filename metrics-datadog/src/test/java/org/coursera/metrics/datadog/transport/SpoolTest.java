@@ -0,0 +1,153 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpoolTest {
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void readsPayloadsInOrderUntilCommitted() throws IOException {
+    Spool spool = new Spool(folder.getRoot(), 1024, 128);
+    append(spool, 1, "first");
+    append(spool, 2, "second");
+    assertEquals(2, spool.pending());
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(1, spool.peek(out));
+    assertEquals("first", out.toString("UTF-8"));
+    out.reset();
+    assertEquals(1, spool.peek(out));
+    assertEquals("first", out.toString("UTF-8"));
+    spool.commit();
+
+    out.reset();
+    assertEquals(2, spool.peek(out));
+    assertEquals("second", out.toString("UTF-8"));
+    spool.commit();
+    assertEquals(0, spool.pending());
+    assertEquals(-1, spool.peek(out));
+  }
+
+  @Test
+  public void evictsOldestSegmentWhenFull() throws IOException {
+    // Two payloads fit in a segment, and the spool holds two segments
+    Spool spool = new Spool(folder.getRoot(), 64, 32);
+    for (int i = 0; i < 6; i++) {
+      append(spool, 0, "payload" + i);
+    }
+
+    assertEquals(4, spool.pending());
+    assertEquals(2, spool.evicted());
+    assertEquals("payload2", peek(spool));
+    assertEquals(2, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void picksUpUnreadPayloadsOnReopen() throws IOException {
+    Spool spool = new Spool(folder.getRoot(), 1024, 32);
+    for (int i = 0; i < 4; i++) {
+      append(spool, 0, "payload" + i);
+    }
+    peek(spool);
+    spool.commit();
+    spool.close();
+
+    Spool reopened = new Spool(folder.getRoot(), 1024, 32);
+    assertEquals(3, reopened.pending());
+    assertEquals("payload1", peek(reopened));
+    reopened.commit();
+    append(reopened, 0, "payload4");
+    assertEquals(3, reopened.pending());
+    assertEquals("payload2", peek(reopened));
+  }
+
+  @Test
+  public void reusesSegmentsOnceRead() throws IOException {
+    Spool spool = new Spool(folder.getRoot(), 1024, 32);
+    for (int i = 0; i < 4; i++) {
+      append(spool, 0, "payload" + i);
+    }
+    for (int i = 0; i < 4; i++) {
+      peek(spool);
+      spool.commit();
+    }
+    assertEquals(-1, spool.peek(new ByteArrayOutputStream()));
+    // the read segment is kept empty for the next payloads
+    assertEquals(2, folder.getRoot().list().length);
+
+    append(spool, 0, "payload4");
+    assertEquals(2, folder.getRoot().list().length);
+    assertEquals("payload4", peek(spool));
+  }
+
+  @Test
+  public void neverHoldsMoreSegmentFilesThanTheCap() throws IOException {
+    Spool spool = new Spool(folder.getRoot(), 96, 32);
+    for (int i = 0; i < 50; i++) {
+      append(spool, 0, "payload" + (i % 10));
+      if (i % 3 == 0) {
+        peek(spool);
+        spool.commit();
+      }
+      assertTrue(folder.getRoot().list().length <= 3);
+    }
+  }
+
+  @Test
+  public void doesNotReadBackRecordsOfReusedSegment() throws IOException {
+    Spool spool = new Spool(folder.getRoot(), 64, 32);
+    for (int i = 0; i < 4; i++) {
+      append(spool, 0, "payload" + i);
+    }
+    // evicts the segment of payload0 and payload1, and reuses it for payload4
+    append(spool, 0, "payload4");
+    spool.close();
+
+    Spool reopened = new Spool(folder.getRoot(), 64, 32);
+    assertEquals(3, reopened.pending());
+    assertEquals("payload2", peek(reopened));
+  }
+
+  @Test
+  public void ignoresUnexpectedFileNames() throws IOException {
+    assertTrue(new File(folder.getRoot(), "stray.spool").createNewFile());
+    Spool spool = new Spool(folder.getRoot(), 1024, 32);
+    append(spool, 0, "payload");
+    assertEquals(1, spool.pending());
+    assertEquals("payload", peek(spool));
+  }
+
+  @Test(expected = IOException.class)
+  public void failsWhenDirectoryCannotBeUsed() throws IOException {
+    new Spool(folder.newFile("file"), 1024, 32);
+  }
+
+  @Test
+  public void rejectsPayloadLargerThanSegment() throws IOException {
+    Spool spool = new Spool(folder.getRoot(), 1024, 32);
+    assertFalse(spool.append((byte) 0, new byte[32], 0, 32));
+    assertTrue(spool.append((byte) 0, new byte[23], 0, 23));
+  }
+
+  private void append(Spool spool, int encoding, String payload) throws IOException {
+    byte[] bytes = payload.getBytes("UTF-8");
+    assertTrue(spool.append((byte) encoding, bytes, 0, bytes.length));
+  }
+
+  private String peek(Spool spool) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    spool.peek(out);
+    return out.toString("UTF-8");
+  }
+}
@@ -0,0 +1,170 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UdpTransportTest {
+  private DatagramSocket agent;
+
+  @Before
+  public void setUp() throws Exception {
+    agent = new DatagramSocket(0, InetAddress.getByName("localhost"));
+    agent.setSoTimeout(1000);
+  }
+
+  @After
+  public void tearDown() {
+    agent.close();
+  }
+
+  @Test
+  public void packsLinesIntoPacketsOfMaxSize() throws Exception {
+    UdpTransport transport = transport().withMaxPacketSize(100).build();
+    Transport.Request request = transport.prepare();
+    for (int i = 0; i < 10; i++) {
+      request.addGauge(new DatadogGauge("gauge" + i, i, 1234L, "host", Arrays.asList("env:prod")));
+    }
+    request.send();
+
+    List<String> lines = new ArrayList<String>();
+    while (lines.size() < 10) {
+      String packet = receive();
+      assertTrue(packet.length() <= 100);
+      lines.addAll(Arrays.asList(packet.split("\n")));
+    }
+    assertEquals(10, lines.size());
+    assertEquals("test.gauge0:0|g|#env:prod", lines.get(0));
+    assertEquals("test.gauge9:9|g|#env:prod", lines.get(9));
+    Counter packets = (Counter) transport.getMetrics().get("packets.sent");
+    assertTrue(packets.getCount() >= 3);
+    transport.close();
+  }
+
+  @Test
+  public void packsCounterDeltas() throws Exception {
+    UdpTransport transport = transport().withMaxPacketSize(1432).build();
+    for (long count : new long[] { 5, 12 }) {
+      Transport.Request request = transport.prepare();
+      request.addCounter(new DatadogCounter("counter", count, 1234L, "host", null));
+      request.addGauge(new DatadogGauge("gauge", 1.5, 1234L, "host", null));
+      request.send();
+    }
+
+    assertEquals("test.counter:5|c\ntest.gauge:1.5|g", receive());
+    assertEquals("test.counter:7|c\ntest.gauge:1.5|g", receive());
+    transport.close();
+  }
+
+  @Test
+  public void sendsDeltaCountsAsTheyAre() throws Exception {
+    UdpTransport transport = transport().withMaxPacketSize(1432).build();
+    for (long count : new long[] { 5, 5 }) {
+      Transport.Request request = transport.prepare();
+      request.addCounter(new DatadogCounter(SeriesName.parse("counter"), count, 1234L, "host", true));
+      request.send();
+    }
+
+    assertEquals("test.counter:5|c", receive());
+    assertEquals("test.counter:5|c", receive());
+    assertEquals(0, ((Gauge) transport.getMetrics().get("counters.tracked")).getValue());
+    transport.close();
+  }
+
+  @Test
+  public void sendsSampledDistributionValues() throws Exception {
+    UdpTransport transport = transport()
+        .withDistributions(UdpTransport.DistributionType.DISTRIBUTION)
+        .withMaxDistributionSamples(2)
+        .build();
+    Transport.DistributionRequest request = (Transport.DistributionRequest) transport.prepare();
+    request.addDistribution(SeriesName.parse("latency[env:prod]"),
+        new double[] { 1, 2, 3, 4.5, 5, 6 }, 1.0);
+    request.send();
+
+    assertEquals("test.latency:2|d|@0.3333333333333333|#env:prod\n"
+        + "test.latency:5|d|@0.3333333333333333|#env:prod", receive());
+    transport.close();
+  }
+
+  @Test
+  public void packsHistogramValuesOnMultiValueLines() throws Exception {
+    UdpTransport transport = transport()
+        .withDistributions(UdpTransport.DistributionType.HISTOGRAM)
+        .withMultiValueLines(true)
+        .withMaxPacketSize(30)
+        .build();
+    Transport.DistributionRequest request = (Transport.DistributionRequest) transport.prepare();
+    request.addDistribution(SeriesName.parse("size"),
+        new double[] { 1, 22, 333, 4444, 55555, 1.5 }, 1.0);
+    request.send();
+
+    assertEquals("test.size:1:22:333:4444|h", receive());
+    assertEquals("test.size:55555:1.5|h", receive());
+    transport.close();
+  }
+
+  @Test
+  public void sendsWeightedValuesWithSampleRate() throws Exception {
+    UdpTransport transport = transport()
+        .withDistributions(UdpTransport.DistributionType.DISTRIBUTION)
+        .build();
+    Transport.DistributionRequest request = (Transport.DistributionRequest) transport.prepare();
+    request.addDistribution(SeriesName.parse("latency"), new double[] { 1.5, 20 },
+        new long[] { 4, 1 });
+    request.send();
+
+    assertEquals("test.latency:1.5|d|@0.25\ntest.latency:20|d", receive());
+    transport.close();
+  }
+
+  @Test
+  public void countsPacketsThatCannotBeSentAsFailed() throws Exception {
+    UdpTransport transport = transport().withMaxPacketSize(70000).build();
+    Transport.Request request = transport.prepare();
+    char[] name = new char[66000];
+    Arrays.fill(name, 'a');
+    request.addGauge(new DatadogGauge(new String(name), 1, 1234L, "host", null));
+    try {
+      request.send();
+      fail("Expected a datagram larger than the UDP limit to fail");
+    } catch (IOException e) {
+      // expected
+    }
+
+    assertEquals(0, ((Counter) transport.getMetrics().get("packets.sent")).getCount());
+    assertEquals(0, ((Counter) transport.getMetrics().get("bytes.sent")).getCount());
+    assertEquals(1, ((Counter) transport.getMetrics().get("packets.failed")).getCount());
+    transport.close();
+  }
+
+  private UdpTransport.Builder transport() {
+    return new UdpTransport.Builder()
+        .withPrefix("test")
+        .withStatsdHost("localhost")
+        .withPort(agent.getLocalPort());
+  }
+
+  private String receive() throws Exception {
+    DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+    agent.receive(packet);
+    return new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+  }
+}
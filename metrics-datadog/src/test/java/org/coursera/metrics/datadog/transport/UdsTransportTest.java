@@ -0,0 +1,172 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class UdsTransportTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void writesLengthPrefixedFrames() throws Exception {
+    Pipe pipe = Pipe.open();
+    ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    UdsTransport.writeFrame(pipe.sink(), header, ByteBuffer.wrap("a:1|c".getBytes("UTF-8")));
+    UdsTransport.writeFrame(pipe.sink(), header, ByteBuffer.wrap("b:2|g".getBytes("UTF-8")));
+    pipe.sink().close();
+
+    ByteBuffer read = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+    while (pipe.source().read(read) >= 0) {
+    }
+    read.flip();
+    for (String expected : new String[] { "a:1|c", "b:2|g" }) {
+      int length = read.getInt();
+      byte[] line = new byte[length];
+      read.get(line);
+      assertEquals(expected, new String(line, "UTF-8"));
+    }
+    assertEquals(0, read.remaining());
+  }
+
+  @Test
+  public void failsClearlyWithoutUnixSocketSupport() {
+    assumeTrue(!UdsTransport.UnixSockets.isSupported());
+    try {
+      new UdsTransport.Builder().withSocketPath("/tmp/dsd.socket").build();
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void requiresSocketPath() {
+    try {
+      new UdsTransport.Builder().build();
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("dogstatsd_stream_socket"));
+    }
+  }
+
+  @Test
+  public void failsClearlyOnMissingSocket() throws Exception {
+    assumeTrue(UdsTransport.UnixSockets.isSupported());
+    String path = new File(folder.getRoot(), "missing.socket").getPath();
+    UdsTransport transport = new UdsTransport.Builder().withSocketPath(path).build();
+    try {
+      transport.prepare();
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(path));
+    } finally {
+      transport.close();
+    }
+  }
+
+  @Test
+  public void overlappingReportsWriteWholeFramesToSocket() throws Exception {
+    assumeTrue(UdsTransport.UnixSockets.isSupported());
+    String path = new File(folder.getRoot(), "dsd.socket").getPath();
+    final ServerSocketChannel server = listen(path);
+    final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    Thread agent = new Thread(new Runnable() {
+      public void run() {
+        try {
+          SocketChannel client = server.accept();
+          ByteBuffer chunk = ByteBuffer.allocate(4096);
+          while (client.read(chunk) >= 0) {
+            received.write(chunk.array(), 0, chunk.position());
+            chunk.clear();
+          }
+          client.close();
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    });
+    agent.start();
+
+    final UdsTransport transport = new UdsTransport.Builder()
+        .withSocketPath(path)
+        .withMaxPacketSize(64)
+        .build();
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    List<Thread> reporters = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final int reporter = t;
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            for (int report = 0; report < 50; report++) {
+              Transport.Request request = transport.prepare();
+              for (int i = 0; i < 10; i++) {
+                request.addGauge(new DatadogGauge("r" + reporter + ".g" + i, report, 1234L,
+                    "host", null));
+              }
+              request.send();
+            }
+          } catch (Exception e) {
+            failure.set(e);
+          }
+        }
+      });
+      reporters.add(thread);
+      thread.start();
+    }
+    for (Thread thread : reporters) {
+      thread.join();
+    }
+    transport.close();
+    agent.join(5000);
+    server.close();
+    assertNull(failure.get());
+
+    ByteBuffer read = ByteBuffer.wrap(received.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    int lines = 0;
+    while (read.hasRemaining()) {
+      int length = read.getInt();
+      assertTrue(length > 0 && length <= 64);
+      byte[] packet = new byte[length];
+      read.get(packet);
+      for (String line : new String(packet, "UTF-8").split("\n")) {
+        assertTrue(line, line.matches("r\\d\\.g\\d:\\d+\\|g"));
+        lines++;
+      }
+    }
+    assertEquals(4 * 50 * 10, lines);
+  }
+
+  /**
+   * A server socket bound to a unix socket path, opened reflectively like the transport does.
+   */
+  private static ServerSocketChannel listen(String path) throws Exception {
+    Class<?> family = Class.forName("java.net.ProtocolFamily");
+    Object unix = Class.forName("java.net.StandardProtocolFamily").getField("UNIX").get(null);
+    ServerSocketChannel server = (ServerSocketChannel) ServerSocketChannel.class
+        .getMethod("open", family).invoke(null, unix);
+    server.bind(UdsTransport.UnixSockets.address(path));
+    return server;
+  }
+}
@@ -0,0 +1,47 @@
+package org.coursera.metrics.serializer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesName;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DirectJsonSerializerTest {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Test
+  public void writesSameDocumentAsObjectMapper() throws Exception {
+    List<String> tags = new ArrayList<String>();
+    tags.add("env:prod");
+    tags.add("version:1.0.0");
+
+    JsonSerializer expected = new JsonSerializer();
+    DirectJsonSerializer actual = new DirectJsonSerializer();
+    SeriesName count = SeriesName.parse("count").withTags(tags);
+    SeriesName rate = SeriesName.parse("rate").withTags(tags);
+
+    for (Serializer serializer : new Serializer[] { expected, actual }) {
+      serializer.startObject();
+      serializer.appendGauge(new DatadogGauge("byte", (byte) 1, 1234L, "host", tags));
+      serializer.appendGauge(new DatadogGauge("int", 2, 1234L, "host", tags));
+      serializer.appendGauge(new DatadogGauge("long", Long.MAX_VALUE, 1234L, "host", tags));
+      serializer.appendGauge(new DatadogGauge("float", 1.1f, 1234L, "host", tags));
+      serializer.appendGauge(new DatadogGauge("double", 1.1, 1234L, "host", tags));
+      serializer.appendGauge(new DatadogGauge("big", new BigDecimal("1.25"), 1234L, "host", tags));
+      serializer.appendGauge(new DatadogGauge("nohost[tag:value]", 3.0, 1234L, null, null));
+      serializer.appendCounter(new DatadogCounter("counter", 42L, 1234L, "host", tags));
+      serializer.appendCounter(new DatadogCounter(count, 7L, 1234L, "host", true, 10L));
+      serializer.appendGauge(new DatadogRate(rate, 0.7, 1234L, "host", 10L));
+      serializer.endObject();
+    }
+
+    assertEquals(MAPPER.readTree(expected.getAsString()), MAPPER.readTree(actual.getAsString()));
+  }
+}
@@ -0,0 +1,41 @@
+package org.coursera.metrics.serializer;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonSerializerTest {
+
+  @Test
+  public void streamsSameBodyAsBufferedSerializer() throws Exception {
+    List<String> tags = new ArrayList<String>();
+    tags.add("env:prod");
+
+    JsonSerializer buffered = new JsonSerializer();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonSerializer streaming = new JsonSerializer(out);
+
+    for (Serializer serializer : new Serializer[] { buffered, streaming }) {
+      serializer.startObject();
+      serializer.appendGauge(new DatadogGauge("gauge[tag:value]", 1.5, 1234L, "host", tags));
+      serializer.appendCounter(new DatadogCounter("counter", 42L, 1234L, "host", tags));
+      serializer.endObject();
+    }
+
+    assertEquals(buffered.getAsString(), out.toString("UTF-8"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void streamingSerializerHasNoString() throws Exception {
+    JsonSerializer serializer = new JsonSerializer(new ByteArrayOutputStream());
+    serializer.startObject();
+    serializer.endObject();
+    serializer.getAsString();
+  }
+}